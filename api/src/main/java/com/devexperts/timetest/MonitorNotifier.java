@@ -0,0 +1,115 @@
+package com.devexperts.timetest;
+
+/*
+ * #%L
+ * api
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Invokes {@link Object#notify()} or {@link Object#notifyAll()} on monitors which are not owned by the caller.
+ * <p>
+ * The notifications are performed asynchronously by daemon threads, so the caller never blocks
+ * on a monitor owned by another thread. A new thread is started if all existing ones are busy,
+ * so a notification which waits for a long-held monitor does not delay the others.
+ * The number of threads is limited, notifications wait in the queue when all of them are busy.
+ */
+class MonitorNotifier {
+    private static final long KEEP_ALIVE_TIME = 60_000; // ms
+    private static final int MAX_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private final ArrayDeque<Object> monitors = new ArrayDeque<>();
+    private final ArrayDeque<Boolean> notifyAll = new ArrayDeque<>(); // for the monitors in the same order
+    private final Set<Thread> threads = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private int idleThreads;
+    private int threadCounter;
+
+    /**
+     * Schedules {@link Object#notify()} or {@link Object#notifyAll()} invocation on the specified monitor.
+     */
+    synchronized void notify(Object monitor, boolean all) {
+        monitors.add(monitor);
+        notifyAll.add(all);
+        if (idleThreads >= monitors.size() || threads.size() >= MAX_THREADS)
+            notify();
+        else
+            startThread();
+    }
+
+    /**
+     * Returns {@code true} if the specified thread is used for notifications.
+     */
+    boolean isNotifierThread(Thread thread) {
+        return threads.contains(thread);
+    }
+
+    private void startThread() {
+        Thread thread = new Thread(this::run, "TimeTestMonitorNotifier-" + ++threadCounter);
+        thread.setDaemon(true);
+        threads.add(thread);
+        // Notifier threads are not a part of the testing code
+        ThreadContext context = ThreadContext.current();
+        boolean inTestingCode = context.inTestingCode;
+        context.inTestingCode = false;
+        try {
+            thread.start();
+        } finally {
+            context.inTestingCode = inTestingCode;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Object monitor;
+            boolean all;
+            synchronized (this) {
+                idleThreads++;
+                try {
+                    long deadline = System.currentTimeMillis() + KEEP_ALIVE_TIME;
+                    while (monitors.isEmpty()) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            threads.remove(Thread.currentThread());
+                            return;
+                        }
+                        wait(remaining);
+                    }
+                } catch (InterruptedException e) {
+                    threads.remove(Thread.currentThread());
+                    return;
+                } finally {
+                    idleThreads--;
+                }
+                monitor = monitors.poll();
+                all = notifyAll.poll();
+            }
+            synchronized (monitor) {
+                if (all)
+                    monitor.notifyAll();
+                else
+                    monitor.notify();
+            }
+        }
+    }
+}
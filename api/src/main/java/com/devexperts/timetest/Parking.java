@@ -0,0 +1,123 @@
+package com.devexperts.timetest;
+
+/*
+ * #%L
+ * api
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.util.UnsafeHolder;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks and unparks threads in real time bypassing time providers.
+ * <p>
+ * Virtual threads are parked via {@link LockSupport}, so they release their carrier threads.
+ * {@link LockSupport} is instrumented, so the threads leave the testing code for this time
+ * and the JDK implementation is used. Other threads are parked via {@code Unsafe} directly.
+ */
+class Parking {
+    // Thread.isVirtual() since JDK 21, null if virtual threads are not supported
+    private static final MethodHandle IS_VIRTUAL = isVirtualMethod();
+    // Carrier threads of virtual threads since JDK 21, null if virtual threads are not supported
+    private static final Class<?> CARRIER_THREAD = carrierThreadClass();
+
+    private Parking() {
+    }
+
+    private static MethodHandle isVirtualMethod() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Class<?> carrierThreadClass() {
+        try {
+            return Class.forName("jdk.internal.misc.CarrierThread", false, null);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the specified thread is a carrier thread of virtual threads.
+     */
+    static boolean isCarrier(Thread thread) {
+        return CARRIER_THREAD != null && thread.getClass() == CARRIER_THREAD;
+    }
+
+    /**
+     * Returns {@code true} if the specified thread is virtual.
+     */
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null)
+            return false;
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Parks the current thread until it is unparked or interrupted, spurious wakeups are possible.
+     *
+     * @param virtual {@code true} if the current thread is virtual.
+     */
+    static void park(boolean virtual) {
+        if (!virtual) {
+            UnsafeHolder.UNSAFE.park(false, 0);
+            return;
+        }
+        ThreadContext context = ThreadContext.current();
+        boolean inTestingCode = context.inTestingCode;
+        context.inTestingCode = false;
+        try {
+            LockSupport.park();
+        } finally {
+            context.inTestingCode = inTestingCode;
+        }
+    }
+
+    /**
+     * Unparks the specified thread.
+     *
+     * @param virtual {@code true} if the thread is virtual.
+     */
+    static void unpark(Thread thread, boolean virtual) {
+        if (!virtual) {
+            UnsafeHolder.UNSAFE.unpark(thread);
+            return;
+        }
+        ThreadContext context = ThreadContext.current();
+        boolean inTestingCode = context.inTestingCode;
+        context.inTestingCode = false;
+        try {
+            LockSupport.unpark(thread);
+        } finally {
+            context.inTestingCode = inTestingCode;
+        }
+    }
+}
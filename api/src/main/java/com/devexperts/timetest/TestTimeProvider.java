@@ -26,18 +26,24 @@ package com.devexperts.timetest;
 import com.devexperts.logging.Logging;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Time provider for testing. You can manipulate with time to your notice.
  * Use {@link #start()} method to start using this provider and {@link #reset()} to reset time provider to default.
  * <p>
+ * Use {@link #startDomain()} instead of {@link #start()} to run several tests concurrently. It starts
+ * an independent time domain which is bound to the current thread and inherited by the threads started from it,
+ * other static methods affect the domain of the calling thread if it is bound. Time domains do not affect
+ * threads which are not started from the testing code, such threads use the global time provider.
+ * <p>
  * See tests for example.
  * <p>
  * <h3>Implementation details</h3>
@@ -47,6 +53,43 @@ import java.util.stream.Collectors;
  * <p> Here are three base operations: <b>waitOn</b> (used for all waiting operations implementation),
  * <b>invalidate</b> (invoked when time is changed) and
  * <b>waitUntilThreadsAreFrozen</b> (used to wait a moment, when all threads are done or in WAITING state).
+ * <p>
+ * Every thread is described by {@link ThreadInfo} which is reused by all its waits, so waiting operations
+ * do not allocate in a steady state. A wait is resumed exactly once, by the first of time changing,
+ * notification or unparking which changes the state from {@code WAITING} to {@code RESUMED};
+ * the waiting thread changes it to {@code CANCELLED} if it is interrupted. The resumer does not touch
+ * the thread info after that, the waiting thread removes it from the other structures itself
+ * before the next wait. The thread info also keeps the unpark permit of its thread.
+ * <p>
+ * There is no global lock. Waiters on monitors are kept in FIFO queues in {@link Stripe stripes}
+ * chosen by the identity hash code of the monitor, unpark permits are guarded by the stripe of the thread,
+ * so unrelated monitors and threads do not contend. {@code notify} resumes the longest waiting thread only.
+ * Time and waiters with a time limit are guarded by the {@link TimerQueue} lock.
+ * These locks are never nested, so they are held for a short time only.
+ * <p>
+ * Waiting threads do not poll their state, they are woken up directly when they should be resumed.
+ * Parked and sleeping threads are parked and woken up via {@link Parking}, so waiting virtual threads
+ * release their carrier threads. Threads waiting on a monitor are woken up via {@code notify} on this monitor,
+ * once per resumed waiter. Resumed waiters stay in the monitor queue until they wake up, and since
+ * {@code notify} wakes up an arbitrary thread, a waiter which is not resumed passes the notification on
+ * while a resumed one still waits. If the monitor is not owned by the thread which resumes the waiter,
+ * the notification is performed asynchronously by {@link MonitorNotifier}.
+ * <p>
+ * Waiting threads with a time limit are kept in a {@link TimerQueue} ordered by resume time,
+ * so changing time processes only the threads which should be resumed.
+ * <p>
+ * Time is stored in nanoseconds, so waiting operations with sub-millisecond timeouts are not rounded.
+ * Time and resume times saturate at {@link Long#MAX_VALUE} instead of overflowing.
+ * <p>
+ * Threads started after {@link #start()} invocation are registered in {@link ThreadTracker},
+ * which counts the ones not waiting in this provider. <b>waitUntilThreadsAreFrozen</b> is notified
+ * as soon as this count becomes zero and checks the states of the registered threads only,
+ * stack traces are taken for the failure report only.
+ * <p>
+ * On reset all waiting threads are {@link #drainWaiters() drained}, so threads which are left
+ * by the test do not stay in virtual waits forever. A thread could take the provider before the reset
+ * and start waiting after the drain, so every wait checks if the provider has been reset
+ * after the wait is registered and {@link #drainIfReset drains} itself.
  */
 public class TestTimeProvider extends TimeProvider {
 
@@ -55,18 +98,26 @@ public class TestTimeProvider extends TimeProvider {
 
     private static final long WAITING_TIMEOUT = 10; // ms
 
+    private static final int STRIPES_SHIFT = 6;
+    private static final int MAGIC = 0xB46394CD;
+
     // For checking that TestTimeProvider isn't started already.
     private static boolean started;
     private static Exception stacktraceOnStart;
 
-    private final IdentityHashMap<Object, List<ThreadInfo>> waitingThreads = new IdentityHashMap<>();
-    private final IdentityHashMap<Thread, ThreadInfo> threadInfos = new IdentityHashMap<>();
-    private Set<Thread> setToBeWaited = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private final MonitorNotifier monitorNotifier = new MonitorNotifier();
+    private final Stripe[] stripes = new Stripe[1 << STRIPES_SHIFT];
+    // Reusable records of the threads which have used this provider, cleared on reset
+    private final ConcurrentHashMap<Thread, ThreadInfo> threadInfos = new ConcurrentHashMap<>();
+    private final TimerQueue timerQueue = new TimerQueue(); // its lock also guards time changing
 
-    private Set<Thread> threadsOnStart = new HashSet<>();
-    private volatile long currentTime = 0; // volatile for getters.
+    private volatile ThreadTracker threadTracker = new ThreadTracker();
+    private volatile long currentTime = 0; // in nanoseconds, volatile for getters.
+    private volatile boolean finished; // true if this time domain is reset
 
     private TestTimeProvider() {
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
     }
 
     // ========== Static methods for instance management ==========
@@ -86,7 +137,7 @@ public class TestTimeProvider extends TimeProvider {
         started = true;
         stacktraceOnStart = new Exception();
         // Start time provider.
-        INSTANCE.start0(startTime);
+        INSTANCE.start0(TimeUnit.MILLISECONDS.toNanos(startTime));
         TimeProvider.setTimeProvider(INSTANCE);
     }
 
@@ -101,12 +152,62 @@ public class TestTimeProvider extends TimeProvider {
     }
 
     /**
-     * Resets time provider to default.
+     * Starts a new time domain which is bound to the current thread and inherited by the threads started from it.
+     * Other static methods of this class affect this domain when they are invoked from its threads.
+     *
+     * @param startTime start time.
      */
-    public synchronized static void reset() {
-        INSTANCE.resetTime();
+    public static void startDomain(long startTime) {
+        ThreadContext context = ThreadContext.current();
+        if (context.timeProvider != null && context.timeProvider.isActive())
+            throw new IllegalStateException("Time domain is started already in this thread");
+        TestTimeProvider domain = new TestTimeProvider();
+        domain.start0(TimeUnit.MILLISECONDS.toNanos(startTime));
+        context.timeProvider = domain;
+        TimeProvider.domainStarted();
+    }
+
+    /**
+     * Starts a new time domain which is bound to the current thread and inherited by the threads started from it.
+     * Sets {@link System#currentTimeMillis()} as start time and returns it.
+     */
+    public static long startDomain() {
+        long startTime = System.currentTimeMillis();
+        startDomain(startTime);
+        return startTime;
+    }
+
+    /**
+     * Resets the time domain of the current thread if it is bound, resets time provider to default otherwise.
+     * Threads of the reset domain use the global time provider after that.
+     * Threads which are still waiting in the provider are released: waits on monitors and parks return
+     * as after a spurious wakeup, sleeps return at once without sleeping the rest of their time.
+     *
+     * @return number of threads which were waiting in the provider and have been released.
+     */
+    public static int reset() {
+        ThreadContext context = ThreadContext.current();
+        TimeProvider domain = context.timeProvider;
+        context.timeProvider = null;
+        if (domain != null)
+            return ((TestTimeProvider) domain).finish();
+        return resetGlobal();
+    }
+
+    private static synchronized int resetGlobal() {
+        // Waits which are started concurrently in this provider drain themselves after that
         TimeProvider.resetTimeProvider();
+        int drained = INSTANCE.resetTime();
         started = false;
+        return drained;
+    }
+
+    /**
+     * Returns time domain of the current thread or the global instance if the domain is not bound.
+     */
+    private static TestTimeProvider current() {
+        TimeProvider domain = ThreadContext.current().timeProvider;
+        return domain instanceof TestTimeProvider && domain.isActive() ? (TestTimeProvider) domain : INSTANCE;
     }
 
     /**
@@ -116,7 +217,16 @@ public class TestTimeProvider extends TimeProvider {
      *               between the current time and midnight, January 1, 1970 UTC.
      */
     public static void increaseTime(long millis) {
-        INSTANCE.increaseTime0(millis);
+        current().increaseTime0(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Increases time on specified delta.
+     *
+     * @param nanos delta time, measured in nanoseconds.
+     */
+    public static void increaseTimeNanos(long nanos) {
+        current().increaseTime0(nanos);
     }
 
     /**
@@ -126,7 +236,17 @@ public class TestTimeProvider extends TimeProvider {
      *               between the current time and midnight, January 1, 1970 UTC.
      */
     public static void setTime(long millis) {
-        INSTANCE.setTime0(millis);
+        current().setTime0(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Sets the specified time.
+     *
+     * @param nanos time to be setted, measured in nanoseconds,
+     *              between the current time and midnight, January 1, 1970 UTC.
+     */
+    public static void setTimeNanos(long nanos) {
+        current().setTime0(nanos);
     }
 
     /**
@@ -139,43 +259,194 @@ public class TestTimeProvider extends TimeProvider {
      * @throws AssertionError if any {@code Threads} are non-frozen after specified timeout.
      */
     public static void waitUntilThreadsAreFrozen(long timeout) throws InterruptedException {
-        INSTANCE.waitUntilThreadsAreFrozen0(timeout);
+        current().waitUntilThreadsAreFrozen0(timeout);
+    }
+
+    /**
+     * Runs waiting threads until the specified time. Waits until all {@code Threads} are frozen,
+     * then sets time to the nearest resume time of the waiting threads and repeats it
+     * while this resume time does not exceed the specified time. At last sets the specified time
+     * and waits until all {@code Threads} are frozen again.
+     *
+     * @param millis  time to be reached, measured in milliseconds,
+     *                between the current time and midnight, January 1, 1970 UTC.
+     * @param timeout timeout, measured in milliseconds, after which all {@code Threads}
+     *                should be frozen on every step.
+     * @throws AssertionError if any {@code Threads} are non-frozen after specified timeout.
+     */
+    public static void runUntil(long millis, long timeout) throws InterruptedException {
+        current().runUntil0(TimeUnit.MILLISECONDS.toNanos(millis), timeout);
+    }
+
+    /**
+     * Runs waiting threads while any of them waits with a time limit.
+     * Waits until all {@code Threads} are frozen, then sets time to the nearest resume time
+     * of the waiting threads and repeats it. Never returns if threads wait periodically,
+     * use {@link #runUntil(long, long)} for them.
+     *
+     * @param timeout timeout, measured in milliseconds, after which all {@code Threads}
+     *                should be frozen on every step.
+     * @return current time after all steps.
+     * @throws AssertionError if any {@code Threads} are non-frozen after specified timeout.
+     */
+    public static long advanceUntilIdle(long timeout) throws InterruptedException {
+        return TimeUnit.NANOSECONDS.toMillis(current().runUntil0(Long.MAX_VALUE, timeout));
     }
 
 
     // ========== TimeProvider implementation ==========
 
-    private synchronized void start0(long startTime) {
-        threadsOnStart = Thread.getAllStackTraces().keySet();
+    private void start0(long startTime) {
+        threadTracker = new ThreadTracker();
         setTime0(startTime);
     }
 
-    private synchronized void resetTime() {
-        currentTime = 0;
+    private int finish() {
+        synchronized (timerQueue) {
+            if (finished)
+                return 0;
+            finished = true;
+        }
+        int drained = resetTime();
+        TimeProvider.domainFinished(this);
+        return drained;
     }
 
-    private synchronized void increaseTime0(long millis) {
-        setTime0(currentTime + millis);
+    @Override
+    boolean isActive() {
+        return !finished;
+    }
+
+    /**
+     * Returns {@code true} if this provider is not used anymore, since it is reset.
+     */
+    private boolean isReset() {
+        return finished || (this == INSTANCE && TimeProvider.getGlobalTimeProvider() != this);
     }
 
-    private long checkTimeArgumentsAndGetMillis(long millis, int nanos) {
+    private int resetTime() {
+        threadTracker = new ThreadTracker();
+        int drained = drainWaiters();
+        if (drained > 0)
+            LOG.info(drained + " waiting threads are released on reset");
+        synchronized (timerQueue) {
+            currentTime = 0;
+        }
+        // Unpark permits are not kept for the next test
+        threadInfos.clear();
+        return drained;
+    }
+
+    /**
+     * Resumes all waiting threads. Waits on monitors and parks return as after a spurious wakeup,
+     * sleeping threads return without sleeping the rest of their time, which could be far
+     * in the virtual future.
+     *
+     * @return number of resumed threads.
+     */
+    private int drainWaiters() {
+        int drained = 0;
+        for (ThreadInfo ti : threadInfos.values()) {
+            int state = ti.state();
+            if (!ThreadInfo.isWaiting(state))
+                continue;
+            // The monitor belongs to the same wait if the state is not changed
+            Object monitor = ti.monitor;
+            if (!ti.tryDrain(state))
+                continue;
+            drained++;
+            if (monitor == null)
+                Parking.unpark(ti.thread, ti.virtual);
+            else
+                notifyMonitor(monitor, false);
+        }
+        return drained;
+    }
+
+    /**
+     * Drains the registered wait of the current thread if this provider has been reset concurrently,
+     * so the wait does not stay in this provider forever. Either this method or {@link #drainWaiters()}
+     * sees the wait, since the reset is marked before the drain and the wait is registered before this check.
+     */
+    private void drainIfReset(ThreadInfo ti) {
+        if (!isReset())
+            return;
+        // The wait could be drained by the reset concurrently
+        ti.tryDrain(ti.state());
+    }
+
+    @Override
+    void onThreadStart(Thread thread) {
+        if (!monitorNotifier.isNotifierThread(thread))
+            threadTracker.add(thread);
+    }
+
+    @Override
+    void onThreadStartFailed(Thread thread) {
+        threadTracker.remove(thread);
+    }
+
+    private void increaseTime0(long nanos) {
+        synchronized (timerQueue) {
+            setTime0(addSaturated(currentTime, nanos));
+        }
+    }
+
+    private long runUntil0(long nanos, long timeout) throws InterruptedException {
+        if (nanos < currentTime) {
+            throw new IllegalArgumentException(
+                "Time cannot be decreased, current=" + currentTime + "ns, new=" + nanos + "ns");
+        }
+        while (true) {
+            waitUntilThreadsAreFrozen0(timeout);
+            long resumeTime = nextResumeTime();
+            if (resumeTime == Long.MAX_VALUE || resumeTime > nanos)
+                break;
+            setTime0(resumeTime);
+        }
+        // Do not move time to the infinity if there are no waiting threads
+        if (nanos != Long.MAX_VALUE) {
+            setTime0(nanos);
+            waitUntilThreadsAreFrozen0(timeout);
+        }
+        return currentTime;
+    }
+
+    /**
+     * Returns the nearest resume time of the waiting threads
+     * or {@link Long#MAX_VALUE} if there are no threads waiting with a time limit.
+     */
+    private long nextResumeTime() {
+        synchronized (timerQueue) {
+            ThreadInfo ti = timerQueue.peek();
+            return ti == null ? Long.MAX_VALUE : ti.resumeTime;
+        }
+    }
+
+    private long checkTimeArgumentsAndGetNanos(long millis, int nanos) {
         if (millis < 0)
             throw new IllegalArgumentException("Timeout value is negative");
         if (nanos < 0 || nanos > 999_999)
             throw new IllegalArgumentException("Nanosecond timeout value out of range");
-        if (nanos >= 500_000 || (nanos != 0 && millis == 0))
-            millis++;
-        return millis;
+        return addSaturated(TimeUnit.MILLISECONDS.toNanos(millis), nanos);
+    }
+
+    private static long addSaturated(long a, long b) {
+        long sum = a + b;
+        // Overflow iff both arguments have the opposite sign of the result
+        if (((a ^ sum) & (b ^ sum)) < 0)
+            return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        return sum;
     }
 
     @Override
     public long timeMillis() {
-        return currentTime;
+        return TimeUnit.NANOSECONDS.toMillis(currentTime);
     }
 
     @Override
     public long nanoTime() {
-        return currentTime * 1_000_000;
+        return currentTime;
     }
 
     @Override
@@ -188,177 +459,687 @@ public class TestTimeProvider extends TimeProvider {
         waitOn(monitor, millis, 0);
     }
 
+    private void setTime0(long nanos) {
+        List<Object> monitors = null;
+        synchronized (timerQueue) {
+            if (nanos < currentTime) {
+                throw new IllegalArgumentException(
+                    "Time cannot be decreased, current=" + currentTime + "ns, new=" + nanos + "ns");
+            }
+            currentTime = nanos;
+            ThreadInfo ti;
+            while ((ti = timerQueue.peek()) != null && ti.resumeTime <= currentTime) {
+                timerQueue.remove(ti);
+                Object monitor = ti.monitor;
+                if (!ti.tryResume())
+                    continue;
+                if (monitor == null) {
+                    Parking.unpark(ti.thread, ti.virtual);
+                } else {
+                    if (monitors == null)
+                        monitors = new ArrayList<>();
+                    monitors.add(monitor);
+                }
+            }
+        }
+        // Monitors are not notified under the timer queue lock
+        if (monitors != null) {
+            // A notification per resumed waiter
+            for (Object monitor : monitors)
+                notifyMonitor(monitor, false);
+        }
+    }
+
     @Override
     public void notify(Object monitor) {
-        notifyAll(monitor);
+        notify(monitor, false);
     }
 
-    private synchronized void setTime0(long millis) {
-        if (millis < currentTime) {
-            throw new IllegalArgumentException(
-                "Time cannot be decreased, current=" + currentTime + ", new=" + millis);
+    @Override
+    public void notifyAll(Object monitor) {
+        notify(monitor, true);
+    }
+
+    /**
+     * Resumes the longest waiting thread on the specified monitor or all of them.
+     */
+    private void notify(Object monitor, boolean all) {
+        ThreadInfo current = threadInfo(Thread.currentThread());
+        current.busy = true;
+        try {
+            Stripe stripe = stripe(monitor);
+            boolean resumed = false;
+            // Waiters are resumed under the stripe lock, so they cannot start the next wait meanwhile
+            synchronized (stripe) {
+                ThreadInfo head = stripe.head(monitor);
+                ThreadInfo ti = head;
+                while (ti != null) {
+                    // The waiter could be resumed by time or interrupted already
+                    if (ti.tryResume()) {
+                        resumed = true;
+                        if (!all)
+                            break;
+                    }
+                    ti = ti.nextWaiter == head ? null : ti.nextWaiter;
+                }
+            }
+            if (resumed)
+                notifyMonitor(monitor, all);
+        } finally {
+            current.busy = false;
         }
-        currentTime = millis;
-        threadInfos.values().stream()
-            .filter(ti -> currentTime >= ti.resumeTime)
-            .forEach(ti -> ti.resumed = true);
-        waitingThreads.values().forEach(tis -> tis.removeIf(ti -> ti.resumed));
-        waitingThreads.entrySet().removeIf(e -> e.getValue().isEmpty());
     }
 
-    @Override
-    public synchronized void notifyAll(Object monitor) {
-        List<ThreadInfo> tis = waitingThreads.remove(monitor);
-        if (tis == null)
+    /**
+     * Wakes up a resumed waiter of the specified monitor or all of them.
+     */
+    private void notifyMonitor(Object monitor, boolean all) {
+        // Do not block on the monitor owned by another thread
+        if (!Thread.holdsLock(monitor))
+            monitorNotifier.notify(monitor, all);
+        else if (all)
+            monitor.notifyAll();
+        else
+            monitor.notify();
+    }
+
+    /**
+     * Passes the notification of the specified monitor, which has woken up the current waiter,
+     * on to another waiter if a resumed one still waits for it. Should be invoked under the monitor.
+     */
+    private void passNotification(Object monitor) {
+        boolean pass;
+        Stripe stripe = stripe(monitor);
+        synchronized (stripe) {
+            pass = stripe.hasSleepingResumedWaiter(monitor);
+        }
+        if (pass)
+            monitor.notify();
+    }
+
+    private Stripe stripe(Object o) {
+        return stripes[(System.identityHashCode(o) * MAGIC) >>> (32 - STRIPES_SHIFT)];
+    }
+
+    /**
+     * Adds the specified thread info to the timer queue.
+     *
+     * @param nanos absolute resume time or a delay, measured in nanoseconds.
+     * @return {@code false} if resume time has been reached already.
+     */
+    private boolean schedule(ThreadInfo ti, boolean isAbsolute, long nanos) {
+        synchronized (timerQueue) {
+            long resumeTime = isAbsolute ? nanos : addSaturated(currentTime, nanos);
+            if (currentTime >= resumeTime)
+                return false;
+            // The thread could not be resumed by the time limit expiration
+            if (resumeTime == Long.MAX_VALUE)
+                return true;
+            ti.resumeTime = resumeTime;
+            timerQueue.add(ti);
+            return true;
+        }
+    }
+
+    private void unschedule(ThreadInfo ti) {
+        if (ti.resumeTime == Long.MAX_VALUE)
             return;
-        tis.forEach(ti -> ti.resumed = true);
+        synchronized (timerQueue) {
+            timerQueue.remove(ti);
+        }
+    }
+
+    private void removeWaiter(ThreadInfo ti) {
+        Stripe stripe = stripe(ti.monitor);
+        synchronized (stripe) {
+            stripe.remove(ti);
+        }
+    }
+
+    /**
+     * Returns the record of the specified thread, it is created on the first use.
+     */
+    private ThreadInfo threadInfo(Thread thread) {
+        ThreadInfo ti = threadInfos.get(thread);
+        if (ti == null) {
+            ti = new ThreadInfo(thread);
+            ThreadInfo old = threadInfos.putIfAbsent(thread, ti);
+            if (old != null)
+                ti = old;
+        }
+        return ti;
+    }
+
+    /**
+     * Removes bookkeeping of the current thread when it leaves the waiting state.
+     * The thread info could be reused by the next wait after that.
+     *
+     * @return {@code true} if the thread has not been resumed (it has been interrupted).
+     */
+    private boolean unregister(ThreadInfo ti) {
+        boolean cancelled = ti.tryCancel();
+        if (ti.monitor != null)
+            removeWaiter(ti);
+        unschedule(ti);
+        ti.finishWaiting();
+        return cancelled;
+    }
+
+    /**
+     * Parks current thread until the specified {@link ThreadInfo} is resumed.
+     *
+     * @return {@code false} if the thread has been interrupted, {@code true} otherwise.
+     */
+    private static boolean parkUntilResumed(ThreadInfo ti) {
+        while (!ti.isResumed()) {
+            if (Thread.currentThread().isInterrupted())
+                return false;
+            Parking.park(ti.virtual);
+        }
+        return true;
     }
 
     @Override
     public void sleep(long millis, int nanos) throws InterruptedException {
-        millis = checkTimeArgumentsAndGetMillis(millis, nanos);
-        if (millis == 0) // does not need to sleep.
+        long timeout = checkTimeArgumentsAndGetNanos(millis, nanos);
+        if (timeout == 0) // does not need to sleep.
             return;
-        // Sleep can be simulated via wait() call without
-        // any possibility of notify() call on the same monitor
-        Object monitor = new Object();
-        synchronized (monitor) {
-            waitOn(monitor, millis);
+        // Sleep is simulated via parking, nobody
+        // except the time changing can resume the thread
+        ThreadInfo ti = threadInfo(Thread.currentThread());
+        ti.busy = true;
+        try {
+            ti.startWaiting(null, false, threadTracker);
+            schedule(ti, false, timeout);
+            drainIfReset(ti);
+        } finally {
+            ti.busy = false;
+        }
+        boolean resumed = parkUntilResumed(ti);
+        ti.busy = true;
+        try {
+            // Drained sleep returns at once, the rest of the time is not slept in real time
+            if (unregister(ti) && !resumed && Thread.interrupted())
+                throw new InterruptedException();
+        } finally {
+            ti.busy = false;
         }
     }
 
     @Override
     public void waitOn(Object monitor, long millis, int nanos) throws InterruptedException {
-        ThreadInfo ti;
-        long resumeTime;
-        setToBeWaited.add(Thread.currentThread());
-        synchronized (this) {
-            millis = checkTimeArgumentsAndGetMillis(millis, nanos);
-            // Wait forever if millis == 0
-            resumeTime = millis != 0 ? currentTime + millis : Long.MAX_VALUE;
-            ti = new ThreadInfo(Thread.currentThread(), monitor, resumeTime);
-            List<ThreadInfo> tis = waitingThreads.computeIfAbsent(monitor, m -> new ArrayList<>());
-            tis.add(ti);
-            threadInfos.put(ti.thread, ti);
-            setToBeWaited.remove(Thread.currentThread());
-        }
-        // Wait with small timeout until
-        // current time is equals or greater than resume time
-        // or notify() is called on the monitor
-        while (!ti.resumed) {
-            monitor.wait(WAITING_TIMEOUT);
+        waitOn(monitor, millis, nanos, false);
+    }
+
+    @Override
+    void waitOnSpuriously(Object monitor, long millis, int nanos) throws InterruptedException {
+        waitOn(monitor, millis, nanos, true);
+    }
+
+    private void waitOn(Object monitor, long millis, int nanos, boolean spurious) throws InterruptedException {
+        long timeout = checkTimeArgumentsAndGetNanos(millis, nanos);
+        ThreadInfo ti = threadInfo(Thread.currentThread());
+        ti.busy = true;
+        try {
+            ti.startWaiting(monitor, false, threadTracker);
+            Stripe stripe = stripe(monitor);
+            synchronized (stripe) {
+                stripe.add(ti);
+            }
+            // Wait forever if timeout == 0
+            if (timeout != 0)
+                schedule(ti, false, timeout);
+            drainIfReset(ti);
+        } finally {
+            ti.busy = false;
         }
-        synchronized (this) {
-            threadInfos.remove(ti.thread);
+        // Wait until current time is equals or greater than resume time
+        // or notify() is called on the monitor, the monitor is notified in both cases.
+        // Spurious wait returns on any notification of the monitor.
+        InterruptedException interruptedException = null;
+        try {
+            while (!ti.isResumed()) {
+                monitor.wait();
+                if (!ti.isResumed()) {
+                    ti.busy = true;
+                    try {
+                        passNotification(monitor);
+                    } finally {
+                        ti.busy = false;
+                    }
+                    if (spurious)
+                        break;
+                }
+            }
+        } catch (InterruptedException e) {
+            interruptedException = e;
+        } finally {
+            // Thread could be interrupted and wait for internal locks
+            ti.busy = true;
+            try {
+                // If the thread has been resumed and interrupted simultaneously,
+                // do not lose the notification and keep the interruption status
+                if (unregister(ti) && interruptedException != null)
+                    throw interruptedException;
+                if (interruptedException != null)
+                    Thread.currentThread().interrupt();
+            } finally {
+                ti.busy = false;
+            }
         }
     }
 
-    private Set<Thread> unparkedThreads = Collections.newSetFromMap(new IdentityHashMap<>());
-
     @Override
     public void park(boolean isAbsolute, long time) {
-        ThreadInfo ti;
-        // This thread could wait for "this" lock,
-        // so store it to set with potentially waiting
-        setToBeWaited.add(Thread.currentThread());
-        synchronized (this) {
-            // This thread could wait
-            setToBeWaited.remove(Thread.currentThread());
-            // If current thread has been unparked already,
-            // just remove it from "unparked threads" set and return
-            if (unparkedThreads.remove(Thread.currentThread()))
-                return;
-            // Count time millis
-            long millis = time / 1_000_000;
-            int nanos = (int) (time % 1_000_000);
-            millis = checkTimeArgumentsAndGetMillis(millis, nanos);
-            long resumeTime = isAbsolute ? millis : currentTime + millis;
-            if (currentTime >= resumeTime)
-                return;
-            // Store information about thread
-            ti = new ThreadInfo(Thread.currentThread(), null, resumeTime);
-            threadInfos.put(ti.thread, ti);
-        }
-        // Simulate park via waiting on unused monitor
-        while (true) {
-            try {
-                Thread.sleep(WAITING_TIMEOUT);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return;
+        ThreadInfo ti = threadInfo(Thread.currentThread());
+        // This thread could wait for internal locks,
+        // so mark it as potentially waiting
+        ti.busy = true;
+        try {
+            Stripe stripe = stripe(ti.thread);
+            synchronized (stripe) {
+                // If current thread has been unparked already, just consume the permit and return
+                if (ti.permit) {
+                    ti.permit = false;
+                    return;
+                }
+                ti.startWaiting(null, true, threadTracker);
             }
-            if (ti.resumed) {
-                synchronized (this) {
-                    threadInfos.remove(ti.thread);
+            // Park forever if relative time is 0, absolute time is measured in milliseconds
+            if (isAbsolute || time != 0) {
+                long nanos = isAbsolute ? TimeUnit.MILLISECONDS.toNanos(time) : time;
+                if (!schedule(ti, isAbsolute, nanos)) {
+                    unregister(ti);
+                    return;
                 }
-                return;
             }
+            drainIfReset(ti);
+        } finally {
+            ti.busy = false;
+        }
+        // Returns if the thread is interrupted, the interruption status is kept
+        parkUntilResumed(ti);
+        ti.busy = true;
+        try {
+            unregister(ti);
+        } finally {
+            ti.busy = false;
         }
     }
 
     @Override
     public void unpark(Object thread) {
-        synchronized (this) {
-            ThreadInfo ti = threadInfos.get(thread);
-            // If thread hasn't been parked already, mark it as unparked,
-            // otherwise mark it as "resumed"
-            if (ti == null)
-                unparkedThreads.add((Thread) thread);
-            else
-                ti.resumed = true;
+        ThreadInfo current = threadInfo(Thread.currentThread());
+        current.busy = true;
+        try {
+            ThreadInfo ti = threadInfo((Thread) thread);
+            boolean resumed;
+            synchronized (stripe(thread)) {
+                // If thread hasn't been parked already, give it the permit,
+                // otherwise resume it
+                resumed = ti.tryUnpark();
+                if (!resumed)
+                    ti.permit = true;
+            }
+            // The thread could be parked in real time by the code which does not use this provider
+            // (e.g. carrier threads of virtual threads), so it is unparked anyway.
+            // Waiting in this provider ignores spurious wakeups.
+            Parking.unpark(ti.thread, ti.virtual);
+        } finally {
+            current.busy = false;
         }
     }
 
-    private synchronized void waitUntilThreadsAreFrozen0(long timeout) throws InterruptedException {
+    private void waitUntilThreadsAreFrozen0(long timeout) throws InterruptedException {
+        ThreadTracker tracker = threadTracker;
         // Store end time
         long endTime = System.currentTimeMillis() + timeout;
-        Exception logException = new Exception();
         while (true) {
             // Store current time.
             long time = System.currentTimeMillis();
-            List<Map.Entry<Thread, StackTraceElement[]>> badThreads =
-                Thread.getAllStackTraces().entrySet().stream().filter(e -> {
-                    Thread t = e.getKey();
-                    if (threadsOnStart.contains(t))
-                        return false;
-                    ThreadInfo ti = threadInfos.get(t);
-                    if (ti != null)
-                        return ti.resumed;
-                    switch (t.getState()) {
-                        case TERMINATED:
-                        case WAITING:
-                        case NEW:
-                            return false;
-                        case BLOCKED:
-                            return setToBeWaited.contains(t);
-                        default:
-                            return true;
-                    }
-                }).collect(Collectors.toList());
+            List<Thread> badThreads = new ArrayList<>();
+            for (Thread t : tracker.threads) {
+                if (!isFrozen(t, tracker))
+                    badThreads.add(t);
+            }
             if (badThreads.isEmpty())
                 return;
             if (time >= endTime) {
                 LOG.error("Waiting until threads are frozen failed by timeout. See stack traces for non-frozen threads:");
-                for (Map.Entry<Thread, StackTraceElement[]> e : badThreads) {
-                    logException.setStackTrace(e.getValue());
-                    LOG.error("Stacktrace for " + e.getKey(), logException);
+                Exception logException = new Exception();
+                for (Thread t : badThreads) {
+                    logException.setStackTrace(t.getStackTrace());
+                    LOG.error("Stacktrace for " + t, logException);
                 }
                 throw new AssertionError("Waiting until threads are frozen failed by timeout.");
             }
-            wait(WAITING_TIMEOUT);
+            tracker.await();
+        }
+    }
+
+    private boolean isFrozen(Thread t, ThreadTracker tracker) {
+        ThreadInfo ti = threadInfos.get(t);
+        if (ti != null) {
+            // The thread is executing this provider's code and could wait for its internal locks
+            if (ti.busy)
+                return false;
+            // Interrupted thread is going to leave the waiting state,
+            // its interruption status is cleared as soon as it becomes runnable
+            if (!ti.isIdle()) {
+                if (!ti.isWaiting() || t.isInterrupted())
+                    return false;
+                Thread.State state = t.getState();
+                return state == Thread.State.WAITING || state == Thread.State.BLOCKED;
+            }
+        }
+        switch (t.getState()) {
+            case TERMINATED:
+                tracker.remove(t);
+                return true;
+            case WAITING:
+            case BLOCKED:
+                return true;
+            default: // NEW thread is being started, it is removed if the start fails
+                return false;
         }
     }
 
     private static class ThreadInfo {
-        volatile boolean resumed;
+        // The lowest bits of the state are the status, the others are the generation of the wait,
+        // so a resumer cannot change the status of the next wait by mistake
+        private static final int IDLE = 0;
+        private static final int WAITING = 1;
+        private static final int PARKED = 2; // waiting and could be resumed by unpark
+        private static final int RESUMED = 3;
+        private static final int CANCELLED = 4;
+        private static final int DRAINED = 5; // resumed on reset
+        private static final int STATUS_MASK = 7;
+        private static final int GENERATION = STATUS_MASK + 1;
+
+        private static final AtomicIntegerFieldUpdater<ThreadInfo> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(ThreadInfo.class, "state");
+
+        private volatile int state = IDLE;
+        volatile boolean busy; // true if thread is executing this provider's code
         final Thread thread;
-        final Object monitor;
-        final long resumeTime; // Long.MAX_VALUE if thread shouldn't be resumed by the time limit expiration
+        final boolean virtual; // true if thread is virtual, it is parked without blocking its carrier thread
+        // The following fields are written by the thread before a wait starts
+        Object monitor; // null if thread is parked or sleeping
+        ThreadTracker tracker; // null if thread is not tracked
+        long resumeTime = Long.MAX_VALUE; // Long.MAX_VALUE if thread shouldn't be resumed by the time limit expiration
+        int timerIndex = -1; // index in TimerQueue, -1 if not queued
+        boolean permit; // unpark permit, guarded by the stripe lock of the thread
+        // Links in the wait queue of the monitor, null if not queued, guarded by the stripe lock of the monitor
+        ThreadInfo nextWaiter;
+        ThreadInfo prevWaiter;
 
-        private ThreadInfo(Thread thread, Object monitor, long resumeTime) {
+        private ThreadInfo(Thread thread) {
             this.thread = thread;
+            this.virtual = Parking.isVirtual(thread);
+        }
+
+        /**
+         * Starts a new wait of the current thread.
+         */
+        void startWaiting(Object monitor, boolean parked, ThreadTracker tracker) {
             this.monitor = monitor;
-            this.resumeTime = resumeTime;
+            this.tracker = tracker.threads.contains(thread) ? tracker : null;
+            resumeTime = Long.MAX_VALUE;
+            state = (state & ~STATUS_MASK) + GENERATION | (parked ? PARKED : WAITING);
+            if (this.tracker != null)
+                this.tracker.decrementRunning();
+        }
+
+        /**
+         * Finishes the wait of the current thread, the thread info could be reused after that.
+         */
+        void finishWaiting() {
+            state = state & ~STATUS_MASK | IDLE;
+        }
+
+        int state() {
+            return state;
+        }
+
+        boolean isIdle() {
+            return status(state) == IDLE;
+        }
+
+        boolean isWaiting() {
+            return isWaiting(state);
+        }
+
+        static boolean isWaiting(int state) {
+            int status = status(state);
+            return status == WAITING || status == PARKED;
+        }
+
+        boolean isResumed() {
+            int status = status(state);
+            return status == RESUMED || status == DRAINED;
+        }
+
+        boolean tryResume() {
+            return tryLeave(state, RESUMED);
+        }
+
+        boolean tryUnpark() {
+            int state = this.state;
+            return status(state) == PARKED && tryLeave(state, RESUMED);
+        }
+
+        boolean tryCancel() {
+            return tryLeave(state, CANCELLED);
+        }
+
+        /**
+         * Drains the wait with the specified {@link #state() state}.
+         */
+        boolean tryDrain(int state) {
+            return tryLeave(state, DRAINED);
+        }
+
+        private boolean tryLeave(int state, int newStatus) {
+            if (!isWaiting(state))
+                return false;
+            // The thread could start a new wait as soon as the state is changed
+            ThreadTracker tracker = this.tracker;
+            if (!STATE.compareAndSet(this, state, state & ~STATUS_MASK | newStatus))
+                return false;
+            if (tracker != null)
+                tracker.incrementRunning();
+            return true;
+        }
+
+        private static int status(int state) {
+            return state & STATUS_MASK;
+        }
+    }
+
+    /**
+     * Threads started after {@link #start()} invocation. Counts the threads
+     * which are not waiting in this provider and notifies {@link #await() waiters}
+     * as soon as this count becomes zero.
+     */
+    private static class ThreadTracker {
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger runningThreads = new AtomicInteger();
+        private volatile int waiters;
+
+        void add(Thread thread) {
+            if (threads.add(thread))
+                runningThreads.incrementAndGet();
+        }
+
+        // Should be invoked for terminated threads and for the ones which have failed to start only
+        void remove(Thread thread) {
+            if (threads.remove(thread))
+                decrementRunning();
+        }
+
+        void incrementRunning() {
+            runningThreads.incrementAndGet();
+        }
+
+        void decrementRunning() {
+            if (runningThreads.decrementAndGet() == 0 && waiters > 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits until all threads are waiting in the provider or for a short time,
+         * during which some threads could change their state without notification.
+         */
+        synchronized void await() throws InterruptedException {
+            waiters++;
+            try {
+                // Threads in transition states are expected to leave them soon
+                wait(runningThreads.get() == 0 ? 1 : WAITING_TIMEOUT);
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    /**
+     * FIFO wait queues of the monitors which identity hash codes correspond to this stripe.
+     * Guarded by its own lock, which also guards unpark permits of the threads with such identity hash codes.
+     * <p>
+     * Every queue is a circular doubly-linked list of {@link ThreadInfo ThreadInfos},
+     * so waiting on a monitor does not allocate.
+     */
+    private static class Stripe {
+        private final IdentityHashMap<Object, ThreadInfo> heads = new IdentityHashMap<>();
+
+        /**
+         * Adds the specified thread info to the tail of its monitor queue.
+         */
+        void add(ThreadInfo ti) {
+            ThreadInfo head = heads.get(ti.monitor);
+            if (head == null) {
+                ti.nextWaiter = ti;
+                ti.prevWaiter = ti;
+                heads.put(ti.monitor, ti);
+                return;
+            }
+            ThreadInfo tail = head.prevWaiter;
+            tail.nextWaiter = ti;
+            ti.prevWaiter = tail;
+            ti.nextWaiter = head;
+            head.prevWaiter = ti;
+        }
+
+        /**
+         * Removes the specified thread info from its monitor queue if it is queued.
+         */
+        void remove(ThreadInfo ti) {
+            ThreadInfo next = ti.nextWaiter;
+            // Waiter could be not queued
+            if (next == null)
+                return;
+            if (next == ti) {
+                heads.remove(ti.monitor);
+            } else {
+                ti.prevWaiter.nextWaiter = next;
+                next.prevWaiter = ti.prevWaiter;
+                if (heads.get(ti.monitor) == ti)
+                    heads.put(ti.monitor, next);
+            }
+            ti.nextWaiter = null;
+            ti.prevWaiter = null;
+        }
+
+        /**
+         * Returns the head of the specified monitor queue, or {@code null} if it is empty.
+         */
+        ThreadInfo head(Object monitor) {
+            return heads.get(monitor);
+        }
+
+        /**
+         * Returns {@code true} if a resumed waiter of the specified monitor has not been woken up yet.
+         * Should be invoked under the monitor, so its queued waiters are either in {@link Object#wait()}
+         * or reacquire the monitor after a notification.
+         */
+        boolean hasSleepingResumedWaiter(Object monitor) {
+            ThreadInfo head = heads.get(monitor);
+            if (head == null)
+                return false;
+            ThreadInfo ti = head;
+            do {
+                if (ti.isResumed() && ti.thread.getState() == Thread.State.WAITING)
+                    return true;
+                ti = ti.nextWaiter;
+            } while (ti != head);
+            return false;
+        }
+    }
+
+    /**
+     * Binary heap of {@link ThreadInfo ThreadInfos} ordered by resume time.
+     * Each thread info keeps its index in the heap, so it can be removed in logarithmic time.
+     * Should be used under its own lock.
+     */
+    private static class TimerQueue {
+        private ThreadInfo[] heap = new ThreadInfo[16];
+        private int size;
+
+        ThreadInfo peek() {
+            return size == 0 ? null : heap[0];
+        }
+
+        void add(ThreadInfo ti) {
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, size * 2);
+            siftUp(size++, ti);
+        }
+
+        void remove(ThreadInfo ti) {
+            int i = ti.timerIndex;
+            if (i < 0)
+                return;
+            ti.timerIndex = -1;
+            ThreadInfo last = heap[--size];
+            heap[size] = null;
+            if (i == size)
+                return;
+            siftDown(i, last);
+            if (heap[i] == last)
+                siftUp(i, last);
+        }
+
+        private void siftUp(int i, ThreadInfo ti) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent].resumeTime <= ti.resumeTime)
+                    break;
+                set(i, heap[parent]);
+                i = parent;
+            }
+            set(i, ti);
+        }
+
+        private void siftDown(int i, ThreadInfo ti) {
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                int right = child + 1;
+                if (right < size && heap[right].resumeTime < heap[child].resumeTime)
+                    child = right;
+                if (ti.resumeTime <= heap[child].resumeTime)
+                    break;
+                set(i, heap[child]);
+                i = child;
+            }
+            set(i, ti);
+        }
+
+        private void set(int i, ThreadInfo ti) {
+            heap[i] = ti;
+            ti.timerIndex = i;
         }
     }
 }
@@ -0,0 +1,57 @@
+package com.devexperts.timetest;
+
+/*
+ * #%L
+ * api
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Per-thread state of the time-test framework, it is accessed via a single {@link ThreadLocal} lookup.
+ * The state is owned by its thread, so hot paths do not touch shared structures.
+ */
+final class ThreadContext {
+    private static final ThreadLocal<ThreadContext> CONTEXT = ThreadLocal.withInitial(ThreadContext::new);
+
+    /**
+     * {@code true} if the thread is executing the testing code.
+     */
+    boolean inTestingCode;
+
+    /**
+     * {@code true} if the thread has checked already whether it has been started from the testing code.
+     */
+    boolean newThreadChecked;
+
+    /**
+     * Time domain of the thread, which is inherited by the threads started from this one.
+     * {@code null} if the global time provider is used.
+     */
+    TimeProvider timeProvider;
+
+    private ThreadContext() {
+    }
+
+    /**
+     * Returns context of the current thread.
+     */
+    static ThreadContext current() {
+        return CONTEXT.get();
+    }
+}
@@ -22,6 +22,12 @@ package com.devexperts.timetest;
  * #L%
  */
 
+import java.lang.invoke.SwitchPoint;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+
 /**
  * Provides time-based methods. Should be thread-safe.
  */
@@ -31,8 +37,38 @@ public abstract class TimeProvider {
      */
     private static final TimeProvider DEFAULT = new DefaultTimeProvider();
     private volatile static TimeProvider timeProvider = DEFAULT;
+    // Is invalidated as soon as non-default time provider is set or any time domain is started
+    private volatile static SwitchPoint defaultProviderSwitchPoint = new SwitchPoint();
+    private static int activeDomains; // guarded by TimeProvider.class
+    private static Consumer<Boolean> defaultProviderListener; // guarded by TimeProvider.class
+    // Serializes notifications of the listener, which are performed without TimeProvider.class lock
+    private static final Object LISTENER_LOCK = new Object();
+    // Time domains of the started threads which have not checked them yet, cleared when the domains finish
+    private static final Map<Thread, TimeProvider> NEW_THREAD_DOMAINS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * Flag of the testing code of the current thread.
+     *
+     * @deprecated the flag is kept in the per-thread context of the framework, which this thread local
+     * reads and writes. It is left for compatibility and will be removed in the next major version.
+     */
+    @Deprecated
+    public static final ThreadLocal<Boolean> inTestingCode = new ThreadLocal<Boolean>() {
+        @Override
+        public Boolean get() {
+            return ThreadContext.current().inTestingCode;
+        }
 
-    public static final ThreadLocal<Boolean> inTestingCode = ThreadLocal.withInitial(() -> false);
+        @Override
+        public void set(Boolean value) {
+            ThreadContext.current().inTestingCode = Boolean.TRUE.equals(value);
+        }
+
+        @Override
+        public void remove() {
+            ThreadContext.current().inTestingCode = false;
+        }
+    };
 
     /**
      * Resets time provider to {@link #DEFAULT default}. Should be used for test purpose only.
@@ -48,7 +84,37 @@ public abstract class TimeProvider {
      * @return current time provider.
      */
     public static TimeProvider getTimeProvider() {
-        return inTestingCode.get() ? timeProvider : DEFAULT;
+        return getTimeProvider(ThreadContext.current());
+    }
+
+    /**
+     * Returns {@link #DEFAULT} if the thread with the specified context is not in the testing code,
+     * its time domain if it is bound, or current time provider otherwise.
+     */
+    static TimeProvider getTimeProvider(ThreadContext context) {
+        if (!context.inTestingCode)
+            return DEFAULT;
+        TimeProvider domain = context.timeProvider;
+        if (domain != null) {
+            if (domain.isActive())
+                return domain;
+            context.timeProvider = null;
+        }
+        return timeProvider;
+    }
+
+    /**
+     * Returns current time provider regardless of the testing code and time domains.
+     */
+    static TimeProvider getGlobalTimeProvider() {
+        return timeProvider;
+    }
+
+    /**
+     * Returns {@code true} if the specified time provider is {@link #DEFAULT}.
+     */
+    static boolean isDefault(TimeProvider timeProvider) {
+        return timeProvider == DEFAULT;
     }
 
     /**
@@ -57,7 +123,171 @@ public abstract class TimeProvider {
      * @param timeProvider time provider.
      */
     static void setTimeProvider(TimeProvider timeProvider) {
-        TimeProvider.timeProvider = timeProvider;
+        boolean changed;
+        synchronized (TimeProvider.class) {
+            TimeProvider.timeProvider = timeProvider;
+            changed = updateSwitchPoint();
+        }
+        if (changed)
+            notifyDefaultProviderListener();
+    }
+
+    /**
+     * Registers a new active time domain, see {@link ThreadContext#timeProvider}.
+     */
+    static void domainStarted() {
+        boolean changed;
+        synchronized (TimeProvider.class) {
+            activeDomains++;
+            changed = updateSwitchPoint();
+        }
+        if (changed)
+            notifyDefaultProviderListener();
+    }
+
+    /**
+     * Unregisters an active time domain, see {@link ThreadContext#timeProvider}.
+     * The started threads which have not checked this domain yet are forgotten,
+     * since the domain could reach them and they would not be collected otherwise.
+     */
+    static void domainFinished(TimeProvider domain) {
+        // The map could wait on JDK locks (e.g. in ReferenceQueue since JDK 19),
+        // which should not be parked in virtual time
+        ThreadContext context = ThreadContext.current();
+        boolean inTestingCode = context.inTestingCode;
+        context.inTestingCode = false;
+        try {
+            NEW_THREAD_DOMAINS.values().removeIf(d -> d == domain);
+        } finally {
+            context.inTestingCode = inTestingCode;
+        }
+        boolean changed;
+        synchronized (TimeProvider.class) {
+            activeDomains--;
+            changed = updateSwitchPoint();
+        }
+        if (changed)
+            notifyDefaultProviderListener();
+    }
+
+    /**
+     * Should be invoked under TimeProvider.class lock.
+     *
+     * @return {@code true} if the default time provider has stopped or started being used.
+     */
+    private static boolean updateSwitchPoint() {
+        if (isDefaultProviderUsed()) {
+            if (!defaultProviderSwitchPoint.hasBeenInvalidated())
+                return false;
+            defaultProviderSwitchPoint = new SwitchPoint();
+            return true;
+        }
+        if (defaultProviderSwitchPoint.hasBeenInvalidated())
+            return false;
+        SwitchPoint.invalidateAll(new SwitchPoint[] {defaultProviderSwitchPoint});
+        return true;
+    }
+
+    // Should be invoked under TimeProvider.class lock
+    private static boolean isDefaultProviderUsed() {
+        return timeProvider == DEFAULT && activeDomains == 0;
+    }
+
+    /**
+     * Notifies the listener with the current state after the time provider is changed.
+     * The listener could wait for other threads, so it is notified without TimeProvider.class lock.
+     * Notifications of concurrent changes are serialized and the state is taken under the lock,
+     * so the last notification always corresponds to the current state.
+     */
+    private static void notifyDefaultProviderListener() {
+        synchronized (LISTENER_LOCK) {
+            Consumer<Boolean> listener;
+            boolean isDefault;
+            synchronized (TimeProvider.class) {
+                listener = defaultProviderListener;
+                isDefault = isDefaultProviderUsed();
+            }
+            if (listener != null)
+                listener.accept(isDefault);
+        }
+    }
+
+    /**
+     * Sets the listener which is notified with {@code false} as soon as a non-default time provider is set
+     * or a time domain is started, and with {@code true} when the {@link #DEFAULT default} one is used again.
+     * The listener is invoked synchronously by the thread which changes the time provider,
+     * so this thread observes its effect when the change is completed. It is invoked without the lock
+     * of this class, so it could be notified several times with the same state. Used by the agent.
+     */
+    static synchronized void setDefaultProviderListener(Consumer<Boolean> listener) {
+        defaultProviderListener = listener;
+    }
+
+    /**
+     * Returns switch point which is valid while {@link #DEFAULT default} time provider is used
+     * and there are no active time domains. A new switch point is created when the time provider
+     * is reset to default. Used by the agent.
+     */
+    static SwitchPoint defaultProviderSwitchPoint() {
+        return defaultProviderSwitchPoint;
+    }
+
+    /**
+     * Notifies the time provider of the thread with the specified context
+     * that the specified thread is going to be started by this one.
+     * The new thread inherits the time domain of its parent. Used by the agent.
+     */
+    static void threadStarted(ThreadContext parent, Thread thread) {
+        TimeProvider domain = parent.timeProvider;
+        if (domain != null && domain.isActive()) {
+            NEW_THREAD_DOMAINS.put(thread, domain);
+            domain.onThreadStart(thread);
+        } else {
+            timeProvider.onThreadStart(thread);
+        }
+    }
+
+    /**
+     * Notifies the time provider which has been notified by {@link #threadStarted(ThreadContext, Thread)}
+     * that the specified thread has failed to start. Used by the agent.
+     */
+    static void threadStartFailed(Thread thread) {
+        TimeProvider domain = NEW_THREAD_DOMAINS.remove(thread);
+        (domain != null ? domain : timeProvider).onThreadStartFailed(thread);
+    }
+
+    /**
+     * Binds the time domain inherited from the parent to the context of the specified new thread.
+     * Used by the agent.
+     */
+    static void inheritTimeDomain(ThreadContext context, Thread thread) {
+        if (NEW_THREAD_DOMAINS.isEmpty())
+            return;
+        TimeProvider domain = NEW_THREAD_DOMAINS.remove(thread);
+        if (domain != null)
+            context.timeProvider = domain;
+    }
+
+    /**
+     * Returns {@code false} if this time provider is a finished time domain,
+     * its threads use current time provider after that.
+     */
+    boolean isActive() {
+        return true;
+    }
+
+    /**
+     * Invoked when a new thread is going to be started, regardless of the testing code.
+     * Does nothing by default.
+     */
+    void onThreadStart(Thread thread) {
+    }
+
+    /**
+     * Invoked when a new thread has failed to start after {@link #onThreadStart(Thread)}.
+     * Does nothing by default.
+     */
+    void onThreadStartFailed(Thread thread) {
     }
 
     // ========== Time-based methods ==========
@@ -92,6 +322,15 @@ public abstract class TimeProvider {
      */
     public abstract void waitOn(Object monitor, long millis, int nanos) throws InterruptedException;
 
+    /**
+     * Like {@link #waitOn(Object, long, int)}, but the thread can also be woken up by notifications
+     * which are not performed via this time provider (e.g. on thread termination).
+     * Used in the instrumented JDK methods, which wait in a loop.
+     */
+    void waitOnSpuriously(Object monitor, long millis, int nanos) throws InterruptedException {
+        waitOn(monitor, millis, nanos);
+    }
+
     /**
      * @see Object#notifyAll()
      */
@@ -0,0 +1,32 @@
+package com.devexperts.timetest.benchmarks;
+
+/*
+ * #%L
+ * api
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Fork;
+
+/**
+ * Runs {@link TimeMethodsBenchmark} under the agent with the default time provider.
+ */
+@Fork(value = 1, jvmArgsAppend = TimeMethodsBenchmark.AGENT)
+public class DefaultTimeProviderBenchmark extends TimeMethodsBenchmark {
+}
@@ -0,0 +1,99 @@
+package com.devexperts.timetest.benchmarks;
+
+/*
+ * #%L
+ * api
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.timetest.Methods;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of {@link Methods} invocations which replace time-based methods
+ * in the instrumented code, compared with the raw ones. The calls are performed
+ * from the non-testing code, so the default time provider is used.
+ * <p>
+ * {@code pendingThreads} threads are marked as started from the testing code and are never started,
+ * so the set of new threads is not empty during the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class MethodsBenchmark {
+
+    @Param({"0", "1000"})
+    public int pendingThreads;
+
+    // Keeps pending threads strongly reachable
+    private final List<Thread> threads = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        Methods.enterTestingCode(false);
+        try {
+            for (int i = 0; i < pendingThreads; i++) {
+                Thread thread = new Thread(() -> {});
+                threads.add(thread);
+                Methods.startThread(thread);
+            }
+        } finally {
+            Methods.leaveTestingCode(false);
+        }
+    }
+
+    @Benchmark
+    public long rawNanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public long nanoTime() {
+        return Methods.nanoTime();
+    }
+
+    @Benchmark
+    public long rawTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public long timeMillis() {
+        return Methods.timeMillis();
+    }
+}
@@ -0,0 +1,150 @@
+package com.devexperts.timetest.benchmarks;
+
+/*
+ * #%L
+ * api
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures time-based methods which are replaced by the agent.
+ * Subclasses define the environment: without the agent, with the default time provider
+ * and with {@link com.devexperts.timetest.TestTimeProvider}.
+ * <p>
+ * The agent is expected in {@code target/timetest.jar}, so run benchmarks from the module directory:
+ * {@code java -jar target/benchmarks.jar}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public abstract class TimeMethodsBenchmark {
+    static final String AGENT = "-javaagent:target/timetest.jar";
+
+    private final Object monitor = new Object();
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public void notifyWithoutWaiters() {
+        synchronized (monitor) {
+            monitor.notify();
+        }
+    }
+
+    @Benchmark
+    public void unparkPark() {
+        // Park consumes the permit and returns immediately, see parkUnpark group for blocking parks
+        LockSupport.unpark(Thread.currentThread());
+        LockSupport.park();
+    }
+
+    @Benchmark
+    @Group("waitNotify")
+    public void ping(PingPong pingPong, Control control) throws InterruptedException {
+        pingPong.pass(0, control);
+    }
+
+    @Benchmark
+    @Group("waitNotify")
+    public void pong(PingPong pingPong, Control control) throws InterruptedException {
+        pingPong.pass(1, control);
+    }
+
+    @Benchmark
+    @Group("parkUnpark")
+    public void parkPing(ParkPingPong pingPong, Control control) {
+        pingPong.pass(0, control);
+    }
+
+    @Benchmark
+    @Group("parkUnpark")
+    public void parkPong(ParkPingPong pingPong, Control control) {
+        pingPong.pass(1, control);
+    }
+
+    /**
+     * Two threads pass the turn to each other via {@code wait} and {@code notify}.
+     * <p>
+     * Threads invoke the benchmark different number of times, so a thread could wait for the turn
+     * after the other one has finished. Threads do not wait after the measurement is stopped,
+     * and a thread which waits before that is woken up by the warmdown passes of the other one.
+     */
+    @State(Scope.Group)
+    public static class PingPong {
+        private int turn;
+
+        synchronized void pass(int id, Control control) throws InterruptedException {
+            while (turn != id) {
+                if (control.stopMeasurement)
+                    return;
+                wait();
+            }
+            turn = 1 - id;
+            notify();
+        }
+    }
+
+    /**
+     * Two threads pass the turn to each other via {@link LockSupport#park} and {@link LockSupport#unpark},
+     * so every pass parks one thread until the other one unparks it. Threads stop as in {@link PingPong}.
+     */
+    @State(Scope.Group)
+    public static class ParkPingPong {
+        private final AtomicReferenceArray<Thread> threads = new AtomicReferenceArray<>(2);
+        private volatile int turn;
+
+        void pass(int id, Control control) {
+            // The other thread checks the turn after it is registered, so the unpark is not lost.
+            // Threads are registered on every pass, since JMH could run iterations in new threads.
+            threads.set(id, Thread.currentThread());
+            while (turn != id) {
+                if (control.stopMeasurement)
+                    return;
+                LockSupport.park(this);
+            }
+            turn = 1 - id;
+            LockSupport.unpark(threads.get(1 - id));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.devexperts.timetest.benchmarks;
+
+/*
+ * #%L
+ * benchmarks
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.timetest.WeakIdentityHashSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link WeakIdentityHashSet} with the previous synchronized implementation
+ * under concurrent updates, like the sets of new threads are updated when threads are started.
+ * <p>
+ * {@link #addRemove()} adds and removes short-lived objects, {@link #addGarbage()} adds objects
+ * which are never removed and have to be expunged after garbage collection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class WeakIdentityHashSetBenchmark {
+
+    @Param({"legacy", "concurrent"})
+    public String impl;
+
+    private Set set;
+
+    @Setup
+    public void setUp() {
+        set = impl.equals("legacy") ? new LegacySet() : new ConcurrentSet();
+    }
+
+    @Benchmark
+    public boolean addRemove() {
+        Object o = new Object();
+        set.add(o);
+        return set.remove(o);
+    }
+
+    @Benchmark
+    public boolean addGarbage() {
+        return set.add(new Object());
+    }
+
+    private interface Set {
+        boolean add(Object o);
+
+        boolean remove(Object o);
+    }
+
+    private static class LegacySet implements Set {
+        private final LegacyWeakIdentityHashSet<Object> set = new LegacyWeakIdentityHashSet<>();
+
+        @Override
+        public boolean add(Object o) {
+            return set.add(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return set.remove(o);
+        }
+    }
+
+    private static class ConcurrentSet implements Set {
+        private final WeakIdentityHashSet<Object> set = new WeakIdentityHashSet<>();
+
+        @Override
+        public boolean add(Object o) {
+            return set.add(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return set.remove(o);
+        }
+    }
+}
@@ -22,97 +22,290 @@ package com.devexperts.timetest;
  * #L%
  */
 
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
 @SuppressWarnings("unused") // used in transformer
 public class Methods {
     public static long timeMillis() {
-        checkNewThread();
-        return TimeProvider.getTimeProvider().timeMillis();
+        return timeProvider().timeMillis();
     }
 
     public static long nanoTime() {
-        checkNewThread();
-        return TimeProvider.getTimeProvider().nanoTime();
+        return timeProvider().nanoTime();
     }
 
     public static void sleep(long millis) throws InterruptedException {
-        checkNewThread();
-        TimeProvider.getTimeProvider().sleep(millis);
+        timeProvider().sleep(millis);
     }
 
     public static void sleep(long millis, int nanos) throws InterruptedException {
-        checkNewThread();
-        TimeProvider.getTimeProvider().sleep(millis, nanos);
+        timeProvider().sleep(millis, nanos);
     }
 
     public static void waitOn(Object monitor) throws InterruptedException {
-        checkNewThread();
-        TimeProvider.getTimeProvider().waitOn(monitor, 0);
+        timeProvider().waitOn(monitor, 0);
     }
 
     public static void waitOn(Object monitor, long millis) throws InterruptedException {
-        checkNewThread();
-        TimeProvider.getTimeProvider().waitOn(monitor, millis);
+        timeProvider().waitOn(monitor, millis);
     }
 
     public static void waitOn(Object monitor, long millis, int nanos) throws InterruptedException {
-        checkNewThread();
-        TimeProvider.getTimeProvider().waitOn(monitor, millis, nanos);
+        timeProvider().waitOn(monitor, millis, nanos);
+    }
+
+    // Used in the instrumented java.lang methods, they are woken up
+    // by the notifications of the JVM and of the non-testing code too
+
+    public static void waitOnSpuriously(Object monitor) throws InterruptedException {
+        timeProvider().waitOnSpuriously(monitor, 0, 0);
+    }
+
+    public static void waitOnSpuriously(Object monitor, long millis) throws InterruptedException {
+        timeProvider().waitOnSpuriously(monitor, millis, 0);
+    }
+
+    public static void waitOnSpuriously(Object monitor, long millis, int nanos) throws InterruptedException {
+        timeProvider().waitOnSpuriously(monitor, millis, nanos);
     }
 
     public static void notify(Object monitor) {
-        checkNewThread();
-        TimeProvider.getTimeProvider().notify(monitor);
+        timeProvider().notify(monitor);
     }
 
     public static void notifyAll(Object monitor) {
-        checkNewThread();
-        TimeProvider.getTimeProvider().notifyAll(monitor);
+        timeProvider().notifyAll(monitor);
+    }
+
+    /**
+     * Notifies the monitor which could be waited in real time by the threads outside of the testing code
+     * (e.g. the queue of a shared {@code Timer}), so it is notified in real time too.
+     */
+    public static void notifyShared(Object monitor) {
+        TimeProvider timeProvider = timeProvider();
+        timeProvider.notify(monitor);
+        if (!TimeProvider.isDefault(timeProvider))
+            monitor.notify();
+    }
+
+    /**
+     * Notifies all waiters of the monitor, see {@link #notifyShared(Object)}.
+     */
+    public static void notifyAllShared(Object monitor) {
+        TimeProvider timeProvider = timeProvider();
+        timeProvider.notifyAll(monitor);
+        if (!TimeProvider.isDefault(timeProvider))
+            monitor.notifyAll();
     }
 
     public static void park(boolean isAbsolute, long time) {
-        checkNewThread();
-        TimeProvider.getTimeProvider().park(isAbsolute, time);
+        timeProvider().park(isAbsolute, time);
     }
 
     public static void unpark(Object thread) {
-        checkNewThread();
-        TimeProvider.getTimeProvider().unpark(thread);
+        TimeProvider timeProvider = timeProvider();
+        timeProvider.unpark(thread);
+        // Carrier threads signal termination of virtual threads to the joining threads,
+        // which could be parked by the global time provider
+        if (TimeProvider.isDefault(timeProvider) && Parking.isCarrier(Thread.currentThread())) {
+            TimeProvider globalTimeProvider = TimeProvider.getGlobalTimeProvider();
+            if (!TimeProvider.isDefault(globalTimeProvider))
+                globalTimeProvider.unpark(thread);
+        }
+    }
+
+    // Virtual threads are parked and unparked by the JDK if these methods return false,
+    // so they release their carrier threads while the default time provider is used
+
+    public static boolean parkVirtual() {
+        return parkVirtual(false, 0);
+    }
+
+    public static boolean parkVirtual(long nanos) {
+        return parkVirtual(false, nanos);
+    }
+
+    public static boolean parkVirtualUntil(long deadline) {
+        return parkVirtual(true, deadline);
+    }
+
+    private static boolean parkVirtual(boolean isAbsolute, long time) {
+        TimeProvider timeProvider = timeProvider();
+        if (TimeProvider.isDefault(timeProvider))
+            return false;
+        timeProvider.park(isAbsolute, time);
+        return true;
+    }
+
+    public static boolean unparkVirtual(Thread thread) {
+        TimeProvider timeProvider = timeProvider();
+        if (TimeProvider.isDefault(timeProvider))
+            return false;
+        timeProvider.unpark(thread);
+        return true;
     }
 
     public static boolean isInTestingCode() {
-        return TimeProvider.inTestingCode.get();
+        return context().inTestingCode;
     }
 
     public static void enterTestingCode(boolean isInTestingCodeAlready) {
         if (!isInTestingCodeAlready)
-            TimeProvider.inTestingCode.set(true);
+            context().inTestingCode = true;
     }
 
     public static void leaveTestingCode(boolean isInTestingCodeAlready) {
         if (!isInTestingCodeAlready)
-            TimeProvider.inTestingCode.set(false);
+            context().inTestingCode = false;
     }
 
     public static void enterNonTestingCode(boolean isInTestingCodeAlready) {
         if (isInTestingCodeAlready)
-            TimeProvider.inTestingCode.set(false);
+            context().inTestingCode = false;
     }
 
     public static void leaveNonTestingCode(boolean isInTestingCodeAlready) {
         if (isInTestingCodeAlready)
-            TimeProvider.inTestingCode.set(true);
+            context().inTestingCode = true;
     }
 
     private static WeakIdentityHashSet<Thread> NEW_THREADS_FROM_TESTING_CODE = new WeakIdentityHashSet<>();
 
     public static void startThread(Thread thread) {
-        if (isInTestingCode()) {
-            NEW_THREADS_FROM_TESTING_CODE.add(thread);
+        // Carrier threads of virtual threads are shared by the JDK scheduler
+        // and should never wait in virtual time
+        if (Parking.isCarrier(thread))
+            return;
+        ThreadContext context = context();
+        boolean isInTestingCode = context.inTestingCode;
+        // Shared structures could wait on JDK locks (e.g. in ReferenceQueue since JDK 19),
+        // which should not be parked in virtual time, so they are updated outside of the testing code
+        context.inTestingCode = false;
+        try {
+            if (isInTestingCode)
+                NEW_THREADS_FROM_TESTING_CODE.add(thread);
+            TimeProvider.threadStarted(context, thread);
+        } finally {
+            context.inTestingCode = isInTestingCode;
         }
     }
 
-    private static void checkNewThread() {
-        if (NEW_THREADS_FROM_TESTING_CODE.remove(Thread.currentThread()))
-            TimeProvider.inTestingCode.set(true);
+    /**
+     * Forgets the specified thread registered by {@link #startThread(Thread)} if it has failed to start
+     * (e.g. native thread cannot be created), so it is not waited for as a thread which is being started.
+     */
+    public static void threadStartFailed(Thread thread) {
+        if (Parking.isCarrier(thread))
+            return;
+        ThreadContext context = context();
+        boolean isInTestingCode = context.inTestingCode;
+        // See startThread
+        context.inTestingCode = false;
+        try {
+            NEW_THREADS_FROM_TESTING_CODE.remove(thread);
+            TimeProvider.threadStartFailed(thread);
+        } finally {
+            context.inTestingCode = isInTestingCode;
+        }
+    }
+
+    /**
+     * Starts the specified thread, it is invoked instead of {@link Thread#start()} at its call sites
+     * when {@link Thread} cannot be instrumented.
+     */
+    public static void startThreadCall(Thread thread) {
+        startThread(thread);
+        try {
+            thread.start();
+        } catch (Throwable e) {
+            threadStartFailed(thread);
+            throw e;
+        }
+    }
+
+    // Tasks submitted from the testing code, they are executed in the testing code too.
+    // It is used for shared executors, whose threads are not started from the testing code.
+    private static final WeakIdentityHashSet<Object> TASKS_FROM_TESTING_CODE = new WeakIdentityHashSet<>();
+
+    public static void submitTask(Object task) {
+        ThreadContext context = context();
+        if (!context.inTestingCode)
+            return;
+        // See startThread
+        context.inTestingCode = false;
+        try {
+            TASKS_FROM_TESTING_CODE.add(task);
+        } finally {
+            context.inTestingCode = true;
+        }
+    }
+
+    /**
+     * Enters the testing code if the specified task has been submitted from it.
+     * {@link #leaveTestingCode(boolean)} should be invoked with the result after the task execution.
+     */
+    public static boolean enterTask(Object task) {
+        ThreadContext context = context();
+        boolean isInTestingCodeAlready = context.inTestingCode;
+        // Carrier threads run continuations of virtual threads which have been started from the testing code
+        if (!isInTestingCodeAlready && TASKS_FROM_TESTING_CODE.contains(task) && !Parking.isCarrier(Thread.currentThread()))
+            context.inTestingCode = true;
+        return isInTestingCodeAlready;
+    }
+
+    /**
+     * Enters the testing code if the specified task has been submitted from it and leaves it otherwise,
+     * unless the current thread has been in the testing code before. It is used by the thread of
+     * a shared {@code Timer}, so the delay of the next task is measured in the time of its submitter.
+     */
+    public static void selectTask(Object task, boolean isInTestingCodeAlready) {
+        if (isInTestingCodeAlready)
+            return;
+        ThreadContext context = context();
+        // See startThread
+        context.inTestingCode = false;
+        if (TASKS_FROM_TESTING_CODE.contains(task) && !Parking.isCarrier(Thread.currentThread()))
+            context.inTestingCode = true;
+    }
+
+    // Period of checking the virtual delays by the threads which wait for them in real time, ms
+    private static final long TASK_DELAY_CHECK_PERIOD = 10;
+
+    /**
+     * Returns the delay of a scheduled task which has been measured after {@link #enterTask(Object)}.
+     * Threads of a shared {@code ScheduledThreadPoolExecutor} wait for it in real time
+     * and are not woken up when the virtual time is changed, so they re-check the delay periodically.
+     */
+    public static long taskDelay(long delay, boolean isInTestingCodeAlready, TimeUnit unit) {
+        if (isInTestingCodeAlready || !context().inTestingCode)
+            return delay;
+        return Math.min(delay, unit.convert(TASK_DELAY_CHECK_PERIOD, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Sets the listener which is notified with {@code false} when the default time provider stops being used
+     * and with {@code true} when it is used again, see {@link TimeProvider#setDefaultProviderListener(Consumer)}.
+     */
+    public static void setDefaultProviderListener(Consumer<Boolean> listener) {
+        TimeProvider.setDefaultProviderListener(listener);
+    }
+
+    private static TimeProvider timeProvider() {
+        return TimeProvider.getTimeProvider(context());
+    }
+
+    private static ThreadContext context() {
+        ThreadContext context = ThreadContext.current();
+        // New thread checks only once if it has been started from the testing code,
+        // the shared set is not accessed after that
+        if (!context.newThreadChecked) {
+            context.newThreadChecked = true;
+            Thread thread = Thread.currentThread();
+            if (NEW_THREADS_FROM_TESTING_CODE.remove(thread))
+                context.inTestingCode = true;
+            TimeProvider.inheritTimeDomain(context, thread);
+        }
+        return context;
     }
 }
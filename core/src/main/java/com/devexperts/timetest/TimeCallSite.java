@@ -0,0 +1,121 @@
+package com.devexperts.timetest;
+
+/*
+ * #%L
+ * api
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+/**
+ * Call site for time-based methods in the instrumented code, it is linked via {@code invokedynamic}.
+ * <p>
+ * While the default time provider is used, the call site invokes the original method directly,
+ * so it is compiled as it is not instrumented. As soon as another time provider is set,
+ * {@link TimeProvider#defaultProviderSwitchPoint() the switch point} is invalidated
+ * and the call site invokes the corresponding {@link Methods} one. When the time provider
+ * is reset to default, the call site is relinked to the original method on its next invocation.
+ */
+@SuppressWarnings("unused") // used in transformer
+public class TimeCallSite extends MutableCallSite {
+    private static final MethodHandle RELINK;
+
+    static {
+        try {
+            RELINK = MethodHandles.lookup().findVirtual(TimeCallSite.class, "relink", MethodType.methodType(void.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final MethodHandle originalTarget;
+    private final MethodHandle fallback;
+
+    private TimeCallSite(MethodHandle originalTarget, MethodHandle methodsTarget) {
+        super(originalTarget.type());
+        this.originalTarget = originalTarget;
+        // Try to relink the call site before every invocation of Methods
+        this.fallback = MethodHandles.foldArguments(methodsTarget, RELINK.bindTo(this));
+        setTarget(fallback);
+        relink();
+    }
+
+    /**
+     * Bootstrap method for {@code invokedynamic} instructions generated by the transformer.
+     *
+     * @param name name of the corresponding {@link Methods} method.
+     * @param type type of the corresponding {@link Methods} method,
+     *             {@code Unsafe} methods take the {@code Unsafe} instance as the first argument.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type)
+        throws ReflectiveOperationException
+    {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle originalTarget;
+        MethodHandle methodsTarget;
+        switch (name) {
+        case "timeMillis":
+            originalTarget = lookup.findStatic(System.class, "currentTimeMillis", type);
+            methodsTarget = lookup.findStatic(Methods.class, name, type);
+            break;
+        case "nanoTime":
+            originalTarget = lookup.findStatic(System.class, "nanoTime", type);
+            methodsTarget = lookup.findStatic(Methods.class, name, type);
+            break;
+        case "sleep":
+            originalTarget = lookup.findStatic(Thread.class, "sleep", type);
+            methodsTarget = lookup.findStatic(Methods.class, name, type);
+            break;
+        case "waitOn":
+            originalTarget = lookup.findVirtual(Object.class, "wait", type.dropParameterTypes(0, 1));
+            methodsTarget = lookup.findStatic(Methods.class, name, type);
+            break;
+        case "notify":
+        case "notifyAll":
+            originalTarget = lookup.findVirtual(Object.class, name, type.dropParameterTypes(0, 1));
+            methodsTarget = lookup.findStatic(Methods.class, name, type);
+            break;
+        case "park":
+        case "unpark":
+            // Unsafe instance is not used by Methods
+            MethodType methodsType = type.dropParameterTypes(0, 1);
+            originalTarget = lookup.findVirtual(type.parameterType(0), name, methodsType);
+            methodsTarget = MethodHandles.dropArguments(
+                lookup.findStatic(Methods.class, name, methodsType), 0, type.parameterType(0));
+            break;
+        default:
+            throw new NoSuchMethodException("Unknown time-based method: " + name + type);
+        }
+        return new TimeCallSite(originalTarget, methodsTarget);
+    }
+
+    private void relink() {
+        SwitchPoint switchPoint = TimeProvider.defaultProviderSwitchPoint();
+        // Another time provider is used, keep invoking Methods
+        if (switchPoint.hasBeenInvalidated())
+            return;
+        setTarget(switchPoint.guardWithTest(originalTarget, fallback));
+    }
+}
@@ -33,7 +33,11 @@ public class TimeTestAgentRunner {
         // Run "SampleAgent" using "JAgentRunner". "SampleAgent" is loaded via created "InnerJarClassLoader".
         JAgentRunner.runAgent("com.devexperts.timetest.TimeTestAgent", inst, agentArgs,
                 InnerJarClassLoader.createForJars(
-                        "timetest/asm-all.jar",
+                        "timetest/asm.jar",
+                        "timetest/asm-tree.jar",
+                        "timetest/asm-analysis.jar",
+                        "timetest/asm-commons.jar",
+                        "timetest/asm-util.jar",
                         "timetest/jagent-impl.jar",
                         "timetest/transformer.jar",
                         "timetest/owner.jar",
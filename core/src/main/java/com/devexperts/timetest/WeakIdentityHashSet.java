@@ -22,150 +22,253 @@ package com.devexperts.timetest;
  * #L%
  */
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Set of weakly referenced objects which are compared by identity.
+ * <p>
+ * Objects are kept in an open addressing hash table with linear probing. {@link #contains(Object)},
+ * {@link #add(Object)} and {@link #remove(Object)} are lock-free, an object is added only
+ * to the first never used slot of its probe sequence via CAS, so it cannot be added twice.
+ * Removed entries leave tombstones, collected objects are expunged eagerly via {@link ReferenceQueue}.
+ * <p>
+ * The table is resized under the lock when it is full of entries and tombstones (grows or is cleaned)
+ * or when it becomes sparse (shrinks). Resizing marks every slot of the old table as {@code MOVED},
+ * the operations which see such a slot wait for the resize and retry with the new table.
+ */
 public class WeakIdentityHashSet<T> implements Iterable<T> {
     private static final int MAGIC = 0xB46394CD;
-    private static final int MAX_SHIFT = 29;
-    private static final int THRESHOLD = (int)((1L << 32) * 0.5); // 50% fill factor for speed
+    private static final int MIN_SHIFT = 2; // max length is 1 << 30
+    private static final int MAX_SHIFT = 29; // min length is 8
+
+    // Slot markers
+    private static final Object TOMBSTONE = new Object();
+    private static final Object MOVED = new Object();
+
+    private static class Entry<T> extends WeakReference<T> {
+        final int hash;
 
-    private static final WeakReference EMPTY_KEY = new WeakReference(null);
+        Entry(T key, int hash, ReferenceQueue<? super T> queue) {
+            super(key, queue);
+            this.hash = hash;
+        }
+    }
 
-    private static class Core<T> {
+    private static class Core {
         final int shift;
-        final int length;
-        final AtomicReferenceArray<WeakReference<T>> keys;
-        int size;
+        final int mask;
+        final AtomicReferenceArray<Object> slots;
+        final AtomicInteger used = new AtomicInteger(); // entries and tombstones
+        final AtomicInteger size = new AtomicInteger(); // entries which are not removed
 
         Core(int shift) {
             this.shift = shift;
-            length = 1 << (32 - shift);
-            keys = new AtomicReferenceArray<>(length);
+            int length = 1 << (32 - shift);
+            mask = length - 1;
+            slots = new AtomicReferenceArray<>(length);
+        }
+
+        int index(int hash) {
+            return hash >>> shift;
+        }
+
+        int length() {
+            return mask + 1;
+        }
+
+        // Entries and tombstones fill at most half of the table
+        boolean isFull() {
+            return used.get() > (length() >>> 1);
+        }
+
+        // Live entries fill less than 1/8 of the table
+        boolean isSparse() {
+            return shift < MAX_SHIFT && size.get() < (length() >>> 3);
         }
     }
 
-    private volatile Core<T> core = new Core<>(MAX_SHIFT);
+    private final ReferenceQueue<T> queue = new ReferenceQueue<>();
+    private volatile Core core = new Core(MAX_SHIFT);
 
-    // does not need external synchronization
     public boolean contains(T key) {
-        Core<T> core = this.core;
-        if (core.size == 0)
-            return false;
-        int i = (System.identityHashCode(key) * MAGIC) >>> core.shift;
+        int hash = hash(key);
+        Core core = this.core;
         while (true) {
-            WeakReference<T> r = core.keys.get(i);
-            if (r == null)
+            if (core.size.get() == 0)
                 return false;
-            if (r.get() == key)
-                return true;
-            if (i == 0)
-                i = core.length;
-            i--;
+            for (int i = core.index(hash); ; i = (i - 1) & core.mask) {
+                Object o = core.slots.get(i);
+                if (o == null)
+                    return false;
+                if (o == MOVED)
+                    break;
+                if (o != TOMBSTONE && ((Entry<?>) o).get() == key)
+                    return true;
+            }
+            core = awaitResize(core);
         }
     }
 
-    // needs external synchronization
-    public synchronized boolean add(T key) {
-        boolean res = addInternal(this.core, key);
-        if (res)
-            if (core.size >= (THRESHOLD >>> core.shift))
-                rehash();
-        return res;
-    }
-
-    // needs external synchronization
-    public boolean remove(T o) {
-        if (core.size == 0)
-            return false;
-        synchronized (this) {
-            int i = (System.identityHashCode(o) * MAGIC) >>> core.shift;
-            if (core.size == 0)
-                return false;
-            while (true) {
-                WeakReference<T> r = core.keys.get(i);
-                if (r == null)
-                    return false;
-                if (r.get() == o) {
-                    core.keys.set(i, EMPTY_KEY);
+    public boolean add(T key) {
+        expungeStaleEntries();
+        int hash = hash(key);
+        Entry<T> entry = null;
+        Core core = this.core;
+        retry:
+        while (true) {
+            for (int i = core.index(hash); ; i = (i - 1) & core.mask) {
+                Object o = core.slots.get(i);
+                if (o == null) {
+                    if (entry == null)
+                        entry = new Entry<>(key, hash, queue);
+                    if (!core.slots.compareAndSet(i, null, entry)) {
+                        // Re-read the slot, the same key could be added concurrently
+                        i = (i + 1) & core.mask;
+                        continue;
+                    }
+                    core.size.incrementAndGet();
+                    core.used.incrementAndGet();
+                    if (core.isFull())
+                        resize(core);
                     return true;
                 }
-                if (i == 0)
-                    i = core.length;
-                i--;
+                if (o == MOVED) {
+                    core = awaitResize(core);
+                    continue retry;
+                }
+                if (o != TOMBSTONE && ((Entry<?>) o).get() == key)
+                    return false;
             }
         }
     }
 
-    private boolean addInternal(Core<T> core, T key) {
-        int i = (System.identityHashCode(key) * MAGIC) >>> core.shift;
-        int startI = i;
-        int firstEmptyKeyIndex = -1;
+    public boolean remove(T key) {
+        expungeStaleEntries();
+        int hash = hash(key);
+        Core core = this.core;
+        retry:
         while (true) {
-            WeakReference<T> k = core.keys.get(i);
-            if (k == null) {
-                if (firstEmptyKeyIndex != -1) {
-                    core.keys.set(firstEmptyKeyIndex, new WeakReference<>(key));
-                } else {
-                    core.keys.set(i, new WeakReference<>(key));
-                    core.size++;
+            if (core.size.get() == 0)
+                return false;
+            for (int i = core.index(hash); ; i = (i - 1) & core.mask) {
+                Object o = core.slots.get(i);
+                if (o == null)
+                    return false;
+                if (o == MOVED) {
+                    core = awaitResize(core);
+                    continue retry;
                 }
-                if (firstEmptyKeyIndex != -1) {
-                    while (true) {
-                        if (i == startI)
-                            break;
-                        i++;
-                        if (i == core.length)
-                            i = 0;
-                        if (core.keys.get(i) == EMPTY_KEY) {
-                            core.keys.set(i, null);
-                            core.size--;
-                        } else {
-                            break;
-                        }
+                if (o != TOMBSTONE && ((Entry<?>) o).get() == key) {
+                    if (!removeEntry(core, i, (Entry<?>) o)) {
+                        // The slot is moved by resize
+                        core = awaitResize(core);
+                        continue retry;
                     }
+                    return true;
                 }
-                return true;
-            } else if (k.get() == key) {
-                return false;
-            }
-            if (k.get() == null) {
-                core.keys.set(i, EMPTY_KEY);
-                if (firstEmptyKeyIndex == -1)
-                    firstEmptyKeyIndex = i;
-            } else if (k == EMPTY_KEY) {
-                if (firstEmptyKeyIndex == -1)
-                    firstEmptyKeyIndex = i;
             }
-            if (i == 0)
-                i = core.length;
-            i--;
         }
     }
 
-    private void rehash() {
-        Core<T> oldCore = core;
-        Core<T> newCore = new Core<>(oldCore.shift - 1);
-        for (int i = 0; i < oldCore.length; i++)
-            if (oldCore.keys.get(i) != null) {
-                T key = oldCore.keys.get(i).get();
-                if (key != null) {
-                    newCore.size++;
-                    addInternal(newCore, key);
+    private boolean removeEntry(Core core, int i, Entry<?> entry) {
+        if (!core.slots.compareAndSet(i, entry, TOMBSTONE))
+            return false;
+        // Removed entry is not enqueued after its key is collected
+        entry.clear();
+        core.size.decrementAndGet();
+        if (core.isSparse())
+            resize(core);
+        return true;
+    }
+
+    /**
+     * Removes the entries which keys have been collected.
+     */
+    private void expungeStaleEntries() {
+        Entry<?> entry;
+        while ((entry = (Entry<?>) queue.poll()) != null) {
+            Core core = this.core;
+            for (int i = core.index(entry.hash); ; i = (i - 1) & core.mask) {
+                Object o = core.slots.get(i);
+                // Stale entries are not moved by resize
+                if (o == null || o == MOVED)
+                    break;
+                if (o == entry) {
+                    removeEntry(core, i, entry);
+                    break;
                 }
             }
+        }
+    }
+
+    /**
+     * Rebuilds the specified table, its new length corresponds to the number of live entries.
+     */
+    private synchronized void resize(Core oldCore) {
+        // The table could be resized already
+        if (core != oldCore || !(oldCore.isFull() || oldCore.isSparse()))
+            return;
+        // Collected keys are dropped, so count the live entries first
+        Entry<?>[] entries = new Entry<?>[oldCore.used.get()];
+        int size = 0;
+        for (int i = 0; i <= oldCore.mask; i++) {
+            Object o = oldCore.slots.getAndSet(i, MOVED);
+            if (o == null || o == TOMBSTONE || ((Entry<?>) o).get() == null)
+                continue;
+            if (size == entries.length)
+                entries = Arrays.copyOf(entries, size * 2 + 1);
+            entries[size++] = (Entry<?>) o;
+        }
+        // Live entries fill from 1/8 to 1/4 of the new table
+        int shift = MAX_SHIFT;
+        while (shift > MIN_SHIFT && (1 << (32 - shift)) < size * 4)
+            shift--;
+        Core newCore = new Core(shift);
+        for (int k = 0; k < size; k++) {
+            Entry<?> entry = entries[k];
+            int j = newCore.index(entry.hash);
+            while (newCore.slots.get(j) != null)
+                j = (j - 1) & newCore.mask;
+            newCore.slots.set(j, entry);
+        }
+        newCore.size.set(size);
+        newCore.used.set(size);
         core = newCore;
     }
 
+    /**
+     * Waits until the specified table is replaced by resize and returns the new one.
+     */
+    private Core awaitResize(Core oldCore) {
+        Core core = this.core;
+        if (core != oldCore)
+            return core;
+        // Resize is performed under the lock
+        synchronized (this) {
+            return this.core;
+        }
+    }
+
+    private static int hash(Object key) {
+        return System.identityHashCode(key) * MAGIC;
+    }
+
+    /**
+     * Returns weakly consistent iterator, it could miss the objects which are added concurrently.
+     */
     @Override
     public Iterator<T> iterator() {
         return new Iterator0();
     }
 
     private class Iterator0 implements Iterator<T> {
-
-        private final Core<T> core;
+        private final Core core;
         private int i;
         private T next;
 
@@ -182,6 +285,8 @@ public class WeakIdentityHashSet<T> implements Iterable<T> {
         @Override
         public T next() {
             T res = next;
+            if (res == null)
+                throw new NoSuchElementException();
             updateIndexToNext();
             return res;
         }
@@ -189,9 +294,10 @@ public class WeakIdentityHashSet<T> implements Iterable<T> {
         @SuppressWarnings("unchecked")
         private void updateIndexToNext() {
             next = null;
-            while (i < core.length && next == null) {
-                if (core.keys.get(i) != null)
-                    next = core.keys.get(i).get();
+            while (i <= core.mask && next == null) {
+                Object o = core.slots.get(i);
+                if (o != null && o != TOMBSTONE && o != MOVED)
+                    next = ((Entry<T>) o).get();
                 i++;
             }
         }
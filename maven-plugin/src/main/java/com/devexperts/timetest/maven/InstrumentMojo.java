@@ -0,0 +1,149 @@
+package com.devexperts.timetest.maven;
+
+/*
+ * #%L
+ * timetest-maven-plugin
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.jagent.Log;
+import com.devexperts.timetest.transformer.Configuration;
+import com.devexperts.timetest.transformer.OfflineInstrumenter;
+import org.aeonbits.owner.ConfigFactory;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Instruments project classes and the specified dependencies ahead of time,
+ * so tests can be run without the agent.
+ * <p>
+ * Instrumented copies are written to {@code classes}, {@code test-classes}
+ * and {@code lib} subdirectories of the {@link #outputDirectory output directory}.
+ */
+@Mojo(name = "instrument", defaultPhase = LifecyclePhase.PROCESS_TEST_CLASSES,
+    requiresDependencyResolution = ResolutionScope.TEST, threadSafe = true)
+public class InstrumentMojo extends AbstractMojo {
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    @Parameter(defaultValue = "${plugin.version}", readonly = true)
+    private String version;
+
+    @Parameter(defaultValue = "${project.build.outputDirectory}")
+    private File classesDirectory;
+
+    @Parameter(defaultValue = "${project.build.testOutputDirectory}")
+    private File testClassesDirectory;
+
+    @Parameter(defaultValue = "${project.build.directory}/timetest")
+    private File outputDirectory;
+
+    /**
+     * Dependencies to be instrumented in {@code groupId:artifactId} format.
+     */
+    @Parameter
+    private List<String> artifacts = new ArrayList<>();
+
+    /**
+     * Configuration properties, see {@code timetest.*} properties in README.
+     * They override {@code timetest.properties} file and system properties.
+     */
+    @Parameter
+    private Map<String, String> properties;
+
+    @Parameter(property = "timetest.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Instrumentation is skipped");
+            return;
+        }
+        Properties props = new Properties();
+        props.putAll(System.getProperties());
+        if (properties != null)
+            props.putAll(properties);
+        // timetest.properties is searched in the project classpath
+        Thread currentThread = Thread.currentThread();
+        ClassLoader contextLoader = currentThread.getContextClassLoader();
+        try (URLClassLoader loader = createClassLoader()) {
+            currentThread.setContextClassLoader(loader);
+            Configuration cfg = ConfigFactory.create(Configuration.class, props);
+            Log.Level logLevel;
+            try {
+                logLevel = Log.Level.valueOf(cfg.logLevel());
+            } catch (IllegalArgumentException e) {
+                throw new MojoExecutionException("Invalid log level: " + cfg.logLevel());
+            }
+            OfflineInstrumenter instrumenter = new OfflineInstrumenter(cfg, new Log("timetest", logLevel, cfg.logFile()), version);
+            instrumenter.instrumentDirectory(classesDirectory, new File(outputDirectory, "classes"), loader);
+            instrumenter.instrumentDirectory(testClassesDirectory, new File(outputDirectory, "test-classes"), loader);
+            File libDirectory = new File(outputDirectory, "lib");
+            for (String id : artifacts) {
+                Artifact artifact = findArtifact(id);
+                instrumenter.instrumentJar(artifact.getFile(), new File(libDirectory, artifact.getFile().getName()), loader);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Instrumentation failed", e);
+        } finally {
+            currentThread.setContextClassLoader(contextLoader);
+        }
+    }
+
+    private Artifact findArtifact(String id) throws MojoExecutionException {
+        for (Artifact artifact : project.getArtifacts()) {
+            if (id.equals(artifact.getGroupId() + ":" + artifact.getArtifactId())) {
+                if (artifact.getFile() == null || !artifact.getFile().isFile())
+                    throw new MojoExecutionException("Artifact " + id + " is not resolved to a jar file");
+                return artifact;
+            }
+        }
+        throw new MojoExecutionException("Artifact " + id + " is not found in the project dependencies");
+    }
+
+    private URLClassLoader createClassLoader() throws MojoExecutionException {
+        try {
+            List<URL> urls = new ArrayList<>();
+            for (String element : project.getTestClasspathElements())
+                urls.add(new File(element).toURI().toURL());
+            // Only JDK classes are loaded from the parent
+            return new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent());
+        } catch (DependencyResolutionRequiredException | MalformedURLException e) {
+            throw new MojoExecutionException("Cannot resolve project classpath", e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.devexperts.timetest.test;
+
+/*
+ * #%L
+ * test
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.Timer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Starts threads of executors outside of the testing code like shared executors do,
+ * it is configured as non-testing code in timetest.properties.
+ */
+public class NonTestingCode {
+    public static void prestartThreads(ThreadPoolExecutor executor) {
+        executor.prestartAllCoreThreads();
+    }
+
+    public static void prestartThreads(ForkJoinPool pool) {
+        pool.submit(() -> {}).join();
+    }
+
+    public static Timer newTimer() {
+        return new Timer(true);
+    }
+
+    public static long currentTimeMillis() {
+        return currentTimeMillisImpl();
+    }
+
+    private static long currentTimeMillisImpl() {
+        return System.currentTimeMillis();
+    }
+
+    public static <T> T call(Callable<T> task) throws Exception {
+        return task.call();
+    }
+
+    // Waits in real time
+    public static void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    // Constructors do not have entry points, so the time is read in the code of the caller
+    // if the private method does not have an entry point
+    public static class Clock {
+        public final long time = currentTimeMillisImpl();
+    }
+}
@@ -29,12 +29,34 @@ import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
 
 /**
  * Tests for {@link com.devexperts.timetest.TestTimeProvider}
@@ -58,6 +80,30 @@ public class TestTimeProviderTest {
         assertEquals(150, System.currentTimeMillis());
     }
 
+    @Test
+    @Repeat(100)
+    public void testTimeIsRealAfterReset() {
+        long realTime = System.currentTimeMillis();
+        TestTimeProvider.start(100);
+        assertEquals(100, System.currentTimeMillis());
+        TestTimeProvider.reset();
+        assertTrue(System.currentTimeMillis() >= realTime);
+        TestTimeProvider.start(200);
+        assertEquals(200, System.currentTimeMillis());
+    }
+
+    @Test
+    @Repeat(100)
+    public void testIncreaseAndSetTimeNanos() {
+        TestTimeProvider.start(100);
+        assertEquals(100_000_000, System.nanoTime());
+        TestTimeProvider.increaseTimeNanos(1500);
+        assertEquals(100_001_500, System.nanoTime());
+        assertEquals(100, System.currentTimeMillis());
+        TestTimeProvider.setTimeNanos(101_000_000);
+        assertEquals(101, System.currentTimeMillis());
+    }
+
     @Test
     @Repeat(100)
     public void testWaitOnWakesUpByNotify() throws InterruptedException {
@@ -151,7 +197,7 @@ public class TestTimeProviderTest {
             TestTimeProvider.waitUntilThreadsAreFrozen(1000);
             assertFalse(failed.get());
         } finally {
-            thread.stop();
+            thread.interrupt();
         }
     }
 
@@ -199,6 +245,21 @@ public class TestTimeProviderTest {
         }
     }
 
+    @Test(timeout = 10_000)
+    public void testThreadsWhichAreNotStartedAreNotWaited() throws InterruptedException {
+        TestTimeProvider.start();
+        Thread notStarted = new Thread(() -> {}, "TestThread");
+        // Native thread with such a stack cannot be created, the thread stays new after the failed start
+        Thread failed = new Thread(null, () -> {}, "TestThread", 1L << 60);
+        try {
+            failed.start();
+        } catch (OutOfMemoryError expected) {
+            assertEquals(Thread.State.NEW, failed.getState());
+        }
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        assertEquals(Thread.State.NEW, notStarted.getState());
+    }
+
     @Test
     @Repeat(100)
     public void interruptionShouldNotBeIgnored() throws InterruptedException {
@@ -303,4 +364,575 @@ public class TestTimeProviderTest {
         thread.start();
         countDownLatch.await();
     }
+
+    @Test(timeout = 5000)
+    @Repeat(100)
+    public void testUnparkDoesNotResumeSleep() throws InterruptedException {
+        TestTimeProvider.start();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                done.set(true);
+            } catch (InterruptedException e) {
+                // ignored, done
+            }
+        }, "TestThread");
+        thread.start();
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        LockSupport.unpark(thread);
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        assertFalse(done.get());
+        TestTimeProvider.increaseTime(100);
+        thread.join();
+        assertTrue(done.get());
+    }
+
+    @Test(timeout = 10_000)
+    @Repeat(10)
+    public void testThreadsAreResumedInDeadlineOrder() throws InterruptedException {
+        TestTimeProvider.start();
+        int threads = 20;
+        AtomicInteger resumed = new AtomicInteger();
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            // Start threads in the reversed order of their deadlines
+            long sleepTime = (threads - i) * 10;
+            ts[i] = new Thread(() -> {
+                try {
+                    Thread.sleep(sleepTime);
+                    resumed.incrementAndGet();
+                } catch (InterruptedException e) {
+                    // ignored, done
+                }
+            }, "TestThread_" + i);
+            ts[i].start();
+        }
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        for (int i = 1; i <= threads; i++) {
+            TestTimeProvider.increaseTime(10);
+            TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+            assertEquals(i, resumed.get());
+        }
+        for (Thread t : ts)
+            t.join();
+    }
+
+    @Test(timeout = 5000)
+    @Repeat(100)
+    public void testParkWithoutTimeoutWaitsForUnpark() throws InterruptedException {
+        TestTimeProvider.start();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread thread = new Thread(() -> {
+            LockSupport.park();
+            done.set(true);
+        }, "TestThread");
+        thread.start();
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        TestTimeProvider.increaseTime(Long.MAX_VALUE / 2);
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        assertFalse(done.get());
+        LockSupport.unpark(thread);
+        thread.join();
+        assertTrue(done.get());
+    }
+
+    @Test(timeout = 10_000)
+    @Repeat(10)
+    public void testIndependentMonitors() throws InterruptedException {
+        TestTimeProvider.start();
+        int pairs = 8;
+        int rounds = 1000;
+        Thread[] ts = new Thread[pairs * 2];
+        for (int i = 0; i < pairs; i++) {
+            Object monitor = new Object();
+            int[] turn = new int[1];
+            for (int j = 0; j < 2; j++) {
+                int id = j;
+                ts[i * 2 + j] = new Thread(() -> {
+                    try {
+                        for (int r = 0; r < rounds; r++) {
+                            synchronized (monitor) {
+                                while (turn[0] != id)
+                                    monitor.wait();
+                                turn[0] = 1 - id;
+                                monitor.notifyAll();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // ignored, done
+                    }
+                }, "TestThread_" + i + "_" + j);
+                ts[i * 2 + j].start();
+            }
+        }
+        for (Thread t : ts)
+            t.join();
+    }
+
+    @Test(timeout = 10_000)
+    @Repeat(10)
+    public void testRunUntil() throws InterruptedException {
+        TestTimeProvider.start(0);
+        long day = 24 * 60 * 60 * 1000;
+        AtomicInteger days = new AtomicInteger();
+        Object monitor = new Object();
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    synchronized (monitor) {
+                        monitor.wait(day / 2);
+                    }
+                    Thread.sleep(day / 2);
+                    days.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                // ignored, done
+            }
+        }, "TestThread");
+        thread.start();
+        TestTimeProvider.runUntil(30 * day + 1, 1000);
+        assertEquals(30 * day + 1, System.currentTimeMillis());
+        assertEquals(30, days.get());
+        thread.interrupt();
+        thread.join();
+    }
+
+    @Test(timeout = 10_000)
+    @Repeat(10)
+    public void testAdvanceUntilIdle() throws InterruptedException {
+        TestTimeProvider.start(0);
+        int threads = 10;
+        AtomicInteger resumed = new AtomicInteger();
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            long sleepTime = (i + 1) * 1000;
+            ts[i] = new Thread(() -> {
+                try {
+                    Thread.sleep(sleepTime);
+                    LockSupport.parkNanos(sleepTime * 1_000_000);
+                    resumed.incrementAndGet();
+                } catch (InterruptedException e) {
+                    // ignored, done
+                }
+            }, "TestThread_" + i);
+            ts[i].start();
+        }
+        assertEquals(threads * 2000, TestTimeProvider.advanceUntilIdle(1000));
+        assertEquals(threads, resumed.get());
+        for (Thread t : ts)
+            t.join();
+    }
+
+    @Test(timeout = 5000)
+    @Repeat(100)
+    public void testParkNanosIsNotRounded() throws InterruptedException {
+        TestTimeProvider.start();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread thread = new Thread(() -> {
+            LockSupport.parkNanos(200_000);
+            done.set(true);
+        }, "TestThread");
+        thread.start();
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        TestTimeProvider.increaseTimeNanos(199_999);
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        assertFalse(done.get());
+        TestTimeProvider.increaseTimeNanos(1);
+        thread.join();
+        assertTrue(done.get());
+    }
+
+    @Test(timeout = 10_000)
+    @Repeat(10)
+    public void testIndependentTimeDomains() throws InterruptedException {
+        int domains = 4;
+        AtomicInteger passed = new AtomicInteger();
+        Thread[] tests = new Thread[domains];
+        for (int i = 0; i < domains; i++) {
+            long startTime = 1000 * (i + 1);
+            tests[i] = new Thread(() -> {
+                TestTimeProvider.startDomain(startTime);
+                try {
+                    AtomicLong wakeUpTime = new AtomicLong();
+                    Thread thread = new Thread(() -> {
+                        try {
+                            Thread.sleep(startTime);
+                            wakeUpTime.set(System.currentTimeMillis());
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }, "TestThread");
+                    thread.start();
+                    TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+                    TestTimeProvider.increaseTime(startTime);
+                    thread.join();
+                    if (wakeUpTime.get() == 2 * startTime && System.currentTimeMillis() == 2 * startTime)
+                        passed.incrementAndGet();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    TestTimeProvider.reset();
+                }
+            }, "TestDomain-" + i);
+            tests[i].start();
+        }
+        for (Thread test : tests)
+            test.join();
+        assertEquals(domains, passed.get());
+    }
+
+    @Test(timeout = 10_000)
+    public void testResetReleasesWaitingThreads() throws InterruptedException {
+        TestTimeProvider.start();
+        Object monitor = new Object();
+        Thread waiting = new Thread(() -> {
+            synchronized (monitor) {
+                try {
+                    monitor.wait();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, "TestThread");
+        Thread parked = new Thread(LockSupport::park, "TestThread");
+        // Drained sleep does not sleep the rest of its time in real time
+        Thread sleeping = new Thread(() -> {
+            try {
+                Thread.sleep(TimeUnit.HOURS.toMillis(1));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }, "TestThread");
+        waiting.start();
+        parked.start();
+        sleeping.start();
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        assertEquals(3, TestTimeProvider.reset());
+        waiting.join();
+        parked.join();
+        sleeping.join();
+    }
+
+    @Test(timeout = 10_000)
+    @Repeat(100)
+    public void testResetConcurrentlyWithSleep() throws InterruptedException {
+        TestTimeProvider.start();
+        AtomicBoolean stopped = new AtomicBoolean();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            // Threads could start sleeping in the provider after the waiting threads are released on reset
+            threads[i] = new Thread(() -> {
+                try {
+                    while (!stopped.get())
+                        Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }, "TestThread");
+            threads[i].start();
+        }
+        for (int i = 0; i < 100; i++)
+            TestTimeProvider.increaseTime(1);
+        TestTimeProvider.reset();
+        stopped.set(true);
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    @Test(timeout = 10_000)
+    public void testNotifierThreadsAreLimited() throws InterruptedException {
+        TestTimeProvider.start();
+        // Monitors of the resumed threads are notified by the notifier threads concurrently
+        Thread[] threads = new Thread[200];
+        for (int i = 0; i < threads.length; i++) {
+            Object monitor = new Object();
+            threads[i] = new Thread(() -> {
+                synchronized (monitor) {
+                    try {
+                        monitor.wait(100);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, "TestThread");
+            threads[i].start();
+        }
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        TestTimeProvider.increaseTime(100);
+        for (Thread thread : threads)
+            thread.join();
+        long notifierThreads = Thread.getAllStackTraces().keySet().stream()
+            .filter(t -> t.getName().startsWith("TimeTestMonitorNotifier-"))
+            .count();
+        assertTrue(notifierThreads > 0);
+        assertTrue(notifierThreads <= Math.max(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Test(timeout = 10_000)
+    public void testNotifyResumesLongestWaitingThread() throws InterruptedException {
+        TestTimeProvider.start();
+        Object monitor = new Object();
+        List<Integer> resumed = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            int id = i;
+            threads[i] = new Thread(() -> {
+                synchronized (monitor) {
+                    try {
+                        monitor.wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    resumed.add(id);
+                }
+            }, "TestThread");
+            threads[i].start();
+            TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        }
+        for (int i = 0; i < threads.length; i++) {
+            synchronized (monitor) {
+                monitor.notify();
+            }
+            threads[i].join();
+            TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+            assertEquals(i + 1, resumed.size());
+        }
+        assertEquals(Arrays.asList(0, 1, 2), resumed);
+    }
+
+    @Test(timeout = 10_000)
+    public void testNotifyWakesUpResumedThreadOnly() throws InterruptedException {
+        TestTimeProvider.start();
+        Object monitor = new Object();
+        AtomicInteger resumed = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            // The last thread waits with a time limit
+            long timeout = i == threads.length - 1 ? 1000 : 0;
+            threads[i] = new Thread(() -> {
+                synchronized (monitor) {
+                    try {
+                        monitor.wait(timeout);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    resumed.incrementAndGet();
+                }
+            }, "TestThread");
+            threads[i].start();
+            TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        }
+        // The other threads pass the notification on to the thread resumed by time
+        TestTimeProvider.increaseTime(1000);
+        threads[3].join();
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        assertEquals(1, resumed.get());
+        long[] waitedCounts = waitedCounts(threads[1], threads[2]);
+        synchronized (monitor) {
+            monitor.notify();
+        }
+        threads[0].join();
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        assertEquals(2, resumed.get());
+        // The other threads have not been woken up
+        assertArrayEquals(waitedCounts, waitedCounts(threads[1], threads[2]));
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+        threads[1].join();
+        threads[2].join();
+        assertEquals(4, resumed.get());
+    }
+
+    private static long[] waitedCounts(Thread... threads) {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long[] counts = new long[threads.length];
+        for (int i = 0; i < threads.length; i++)
+            counts[i] = threadMXBean.getThreadInfo(threads[i].getId()).getWaitedCount();
+        return counts;
+    }
+
+    @Test(timeout = 10_000)
+    public void testScheduledExecutor() throws Exception {
+        long startTime = TestTimeProvider.start();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ScheduledFuture<Long> future = executor.schedule(() -> System.currentTimeMillis(), 1, TimeUnit.HOURS);
+            TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+            assertFalse(future.isDone());
+            TestTimeProvider.increaseTime(TimeUnit.HOURS.toMillis(1));
+            assertEquals(startTime + TimeUnit.HOURS.toMillis(1), (long) future.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 60_000)
+    @Repeat(10)
+    public void testVirtualThreads() throws Exception {
+        Method startVirtualThread;
+        try {
+            startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            startVirtualThread = null;
+        }
+        assumeNotNull(startVirtualThread); // JDK 21+
+        TestTimeProvider.start();
+        // Much more threads than carrier threads
+        int n = 10_000;
+        AtomicInteger resumed = new AtomicInteger();
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            threads[i] = (Thread) startVirtualThread.invoke(null, (Runnable) () -> {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                LockSupport.parkNanos(1_000_000_000);
+                resumed.incrementAndGet();
+            });
+        }
+        TestTimeProvider.waitUntilThreadsAreFrozen(10_000);
+        TestTimeProvider.increaseTime(1000);
+        TestTimeProvider.waitUntilThreadsAreFrozen(10_000);
+        assertEquals(0, resumed.get());
+        TestTimeProvider.increaseTime(1000);
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(n, resumed.get());
+    }
+
+    // Tasks are instances of anonymous classes, so they are not entry points of the testing code
+    @Test(timeout = 10_000)
+    public void testTasksOfSharedExecutors() throws Exception {
+        long startTime = 100;
+        TestTimeProvider.start(startTime);
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+        ForkJoinPool pool = new ForkJoinPool(1);
+        Timer timer = NonTestingCode.newTimer();
+        try {
+            NonTestingCode.prestartThreads(executor);
+            NonTestingCode.prestartThreads(pool);
+            assertEquals(startTime, (long) executor.submit(currentTimeTask()).get());
+            assertEquals(startTime, (long) pool.submit(currentTimeTask()).get());
+            assertEquals(startTime, (long) CompletableFuture.supplyAsync(new Supplier<Long>() {
+                @Override
+                public Long get() {
+                    return System.currentTimeMillis();
+                }
+            }, pool).get());
+            CompletableFuture<Long> timerTaskTime = new CompletableFuture<>();
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    timerTaskTime.complete(System.currentTimeMillis());
+                }
+            }, 0);
+            assertEquals(startTime, (long) timerTaskTime.get());
+        } finally {
+            executor.shutdownNow();
+            pool.shutdownNow();
+            timer.cancel();
+        }
+    }
+
+    // Delays are measured in the virtual time, although the threads of shared executors are not in the testing code
+    @Test(timeout = 10_000)
+    public void testDelayedTasksOfSharedExecutors() throws Exception {
+        long startTime = 100;
+        long delay = 1000;
+        TestTimeProvider.start(startTime);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        Timer timer = NonTestingCode.newTimer();
+        try {
+            NonTestingCode.prestartThreads(executor);
+            ScheduledFuture<Long> executorTaskTime = executor.schedule(currentTimeTask(), delay, TimeUnit.MILLISECONDS);
+            CompletableFuture<Long> timerTaskTime = new CompletableFuture<>();
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    timerTaskTime.complete(System.currentTimeMillis());
+                }
+            }, delay);
+            NonTestingCode.sleep(100);
+            assertFalse(executorTaskTime.isDone());
+            assertFalse(timerTaskTime.isDone());
+            TestTimeProvider.increaseTime(delay);
+            assertEquals(startTime + delay, (long) executorTaskTime.get());
+            assertEquals(startTime + delay, (long) timerTaskTime.get());
+        } finally {
+            executor.shutdownNow();
+            timer.cancel();
+        }
+    }
+
+    private static Callable<Long> currentTimeTask() {
+        return new Callable<Long>() {
+            @Override
+            public Long call() {
+                return System.currentTimeMillis();
+            }
+        };
+    }
+
+    // Thread.join is allowed in timetest.properties
+    @Test(timeout = 10_000)
+    public void testThreadJoinWithTimeout() throws InterruptedException {
+        TestTimeProvider.start();
+        Thread sleeping = new Thread(() -> sleepUninterruptibly(1000), "SleepingThread");
+        Thread joining = new Thread(() -> joinUninterruptibly(sleeping, 60_000), "JoiningThread");
+        sleeping.start();
+        joining.start();
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        // Joining thread is woken up on termination
+        TestTimeProvider.increaseTime(1000);
+        joining.join();
+        assertFalse(sleeping.isAlive());
+
+        Thread sleepingLong = new Thread(() -> sleepUninterruptibly(100_000), "SleepingThread");
+        Thread joiningLong = new Thread(() -> joinUninterruptibly(sleepingLong, 1000), "JoiningThread");
+        sleepingLong.start();
+        joiningLong.start();
+        TestTimeProvider.waitUntilThreadsAreFrozen(1000);
+        // Joining thread waits in virtual time
+        TestTimeProvider.increaseTime(1000);
+        joiningLong.join();
+        assertTrue(sleepingLong.isAlive());
+        TestTimeProvider.increaseTime(100_000);
+        sleepingLong.join();
+    }
+
+    private static void sleepUninterruptibly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread, long millis) {
+        try {
+            thread.join(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testEntryPointsOfPrivateMethods() throws Exception {
+        long startTime = 100;
+        TestTimeProvider.start(startTime);
+        // Private methods invoked directly are executed in the code of their callers
+        assertEquals(startTime, currentTimeMillis());
+        assertNotEquals(startTime, NonTestingCode.currentTimeMillis());
+        assertNotEquals(startTime, new NonTestingCode.Clock().time);
+        // Method references are entry points
+        assertEquals(startTime, (long) NonTestingCode.call(TestTimeProviderTest::currentTimeMillis));
+    }
+
+    private static long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
 }
@@ -23,6 +23,7 @@ package com.devexperts.timetest.test;
  */
 
 import com.devexperts.timetest.TestTimeProvider;
+import com.devexperts.timetest.TimeProvider;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
@@ -43,4 +44,18 @@ public class TimeProviderScopeTest {
         thread.join();
         Assert.assertEquals(time, thread.time);
     }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedTestingCodeFlag() throws Exception {
+        Assert.assertTrue(TimeProvider.inTestingCode.get());
+        Assert.assertFalse(NonTestingCode.call(TimeProvider.inTestingCode::get));
+        TimeProvider.inTestingCode.set(false);
+        try {
+            Assert.assertFalse(TimeProvider.inTestingCode.get());
+        } finally {
+            TimeProvider.inTestingCode.set(true);
+        }
+        Assert.assertTrue(TimeProvider.inTestingCode.get());
+    }
 }
@@ -22,19 +22,60 @@ package com.devexperts.timetest;
  * #L%
  */
 
-import com.devexperts.jagent.CachingClassFileTransformer;
 import com.devexperts.jagent.JAgent;
 import com.devexperts.jagent.JAgentUtil;
 import com.devexperts.jagent.Log;
 import com.devexperts.timetest.transformer.Configuration;
+import com.devexperts.timetest.transformer.LazyInstrumentation;
 import com.devexperts.timetest.transformer.TimeTestTransformer;
 import org.aeonbits.owner.ConfigFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassDefinition;
 import java.lang.instrument.Instrumentation;
+import java.util.concurrent.locks.LockSupport;
 
 public class TimeTestAgent extends JAgent {
+    private final Instrumentation inst;
+    private final Log log;
+    private TimeTestTransformer lazyTransformer; // null if all classes are instrumented on loading
+    private LazyInstrumentation lazyInstrumentation;
+
     private TimeTestAgent(Instrumentation inst, String args, String agentName, String agentVersion, Log log) {
         super(inst, agentName, agentVersion, log);
+        this.inst = inst;
+        this.log = log;
+    }
+
+    @Override
+    public void go() throws Exception {
+        // Lazily instrumented classes are changed via retransformation
+        if (lazyTransformer != null)
+            inst.addTransformer(lazyTransformer, true);
+        super.go();
+        // Since JDK 9 LockSupport is loaded during the JVM initialization before the agent,
+        // all java.util.concurrent timed waits park via it
+        redefine(LockSupport.class);
+        if (lazyInstrumentation != null)
+            lazyInstrumentation.install();
+    }
+
+    // Redefinition with the original bytes applies the registered transformers
+    private void redefine(Class<?> clazz) {
+        String resource = clazz.getName().substring(clazz.getName().lastIndexOf('.') + 1) + ".class";
+        try (InputStream in = clazz.getResourceAsStream(resource)) {
+            if (in == null)
+                throw new IOException("Class file is not found");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) > 0; )
+                bytes.write(buf, 0, n);
+            inst.redefineClasses(new ClassDefinition(clazz, bytes.toByteArray()));
+        } catch (Exception e) {
+            log.warn("Cannot redefine ", clazz.getName(), ", time-based methods in it are not processed: ", e);
+        }
     }
 
     public static TimeTestAgent create(Instrumentation inst, String agentArgs) {
@@ -52,10 +93,15 @@ public class TimeTestAgent extends JAgent {
         TimeTestAgent agent = new TimeTestAgent(inst, agentArgs, agentName, agentVersion, log);
         agent.setRedefineClasses(cfg.redefine());
         agent.setIsVerboseRedefinition(cfg.verboseRedifinition());
-        CachingClassFileTransformer transformer = new TimeTestTransformer(cfg, log, agentVersion);
-        transformer.setCacheDir(cfg.cacheDir());
+        TimeTestTransformer transformer = new TimeTestTransformer(cfg, log, agentVersion);
         transformer.setDumpDir(cfg.dumpDir());
-        agent.addTransformer(transformer);
+        if (cfg.lazy()) {
+            agent.lazyInstrumentation = new LazyInstrumentation(inst, log, cfg.lazyRestoreDelay());
+            transformer.setLazyInstrumentation(agent.lazyInstrumentation);
+            agent.lazyTransformer = transformer;
+        } else {
+            agent.addTransformer(transformer);
+        }
         return agent;
     }
 }
@@ -22,18 +22,32 @@ package com.devexperts.timetest.transformer;
  * #L%
  */
 
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.Method;
 
 import static com.devexperts.timetest.transformer.TransformationUtils.*;
 import static org.objectweb.asm.Opcodes.*;
 
 class ChangeTimeMethodsMethodTransformer extends MethodVisitor {
-    private final GeneratorAdapter mv;
+    private final boolean invokeDynamic;
+    private final boolean spuriousWaits;
 
-    ChangeTimeMethodsMethodTransformer(GeneratorAdapter mv) {
+    ChangeTimeMethodsMethodTransformer(MethodVisitor mv, boolean invokeDynamic) {
+        this(mv, invokeDynamic, false);
+    }
+
+    /**
+     * @param invokeDynamic if {@code true}, time-based methods are replaced with {@code invokedynamic}
+     *                      linked to {@code TimeCallSite}, otherwise with {@code Methods} invocations.
+     * @param spuriousWaits if {@code true}, waits can be woken up by notifications which are not performed
+     *                      via the time provider, it is used for JDK methods which wait in a loop.
+     */
+    ChangeTimeMethodsMethodTransformer(MethodVisitor mv, boolean invokeDynamic, boolean spuriousWaits) {
         super(ASM_API, mv);
-        this.mv = mv;
+        this.invokeDynamic = invokeDynamic;
+        this.spuriousWaits = spuriousWaits;
     }
 
     @Override
@@ -42,37 +56,80 @@ class ChangeTimeMethodsMethodTransformer extends MethodVisitor {
             processSleep(opcode, owner, name, desc, itf) ||
             processWait(opcode, owner, name, desc, itf) ||
             processNotify(opcode, owner, name, desc, itf) ||
-            processUnsafe(opcode, owner, name, desc, itf))
+            processUnsafe(opcode, owner, name, desc, itf) ||
+            processVirtualThreads(opcode, owner, name, desc, itf))
             return;
         super.visitMethodInsn(opcode, owner, name, desc, itf);
     }
 
+    // LockSupport invokes jdk.internal.misc.Unsafe since JDK 9
     private boolean processUnsafe(int opcode, String owner, String name, String desc, boolean itf) {
-        if (owner.equals("sun/misc/Unsafe")) {
-            if (name.equals("park")) {
-                mv.invokeStatic(METHODS_TYPE, PARK);
-                mv.pop();
+        if (owner.equals("sun/misc/Unsafe") || owner.equals("jdk/internal/misc/Unsafe")) {
+            if (name.equals("park") && desc.equals("(ZJ)V")) {
+                invokeUnsafeMethod(owner, PARK);
                 return true;
-            } else if (name.equals("unpark")) {
-                mv.invokeStatic(METHODS_TYPE, UNPARK);
-                mv.pop();
+            } else if (name.equals("unpark") && desc.equals("(Ljava/lang/Object;)V")) {
+                invokeUnsafeMethod(owner, UNPARK);
                 return true;
             }
         }
         return false;
     }
 
+    // LockSupport parks and unparks virtual threads via jdk.internal.misc.VirtualThreads since JDK 19
+    private boolean processVirtualThreads(int opcode, String owner, String name, String desc, boolean itf) {
+        if (opcode != INVOKESTATIC || !owner.equals(VIRTUAL_THREADS))
+            return false;
+        Method method;
+        if (name.equals("park") && desc.equals("()V"))
+            method = PARK_VIRTUAL_0;
+        else if (name.equals("park") && desc.equals("(J)V"))
+            method = PARK_VIRTUAL_1;
+        else if (name.equals("parkUntil") && desc.equals("(J)V"))
+            method = PARK_VIRTUAL_UNTIL;
+        else if (name.equals("unpark") && desc.equals("(Ljava/lang/Thread;)V"))
+            method = UNPARK_VIRTUAL;
+        else
+            return false;
+        // The original method is invoked if the Methods one returns false, so the argument is duplicated for it.
+        // Frames are computed for the classes with such invocations.
+        boolean wide = desc.equals("(J)V");
+        Label original = new Label();
+        Label end = new Label();
+        if (!desc.equals("()V"))
+            mv.visitInsn(wide ? DUP2 : DUP);
+        invokeStatic(method);
+        mv.visitJumpInsn(IFEQ, original);
+        if (!desc.equals("()V"))
+            mv.visitInsn(wide ? POP2 : POP);
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(original);
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+        mv.visitLabel(end);
+        return true;
+    }
+
     private boolean processWait(int opcode, String owner, String name, String desc, boolean itf) {
         if (opcode == INVOKEVIRTUAL && name.equals("wait")) {
+            // Spurious waits are used in the bootstrap classes only, so they are never invoked dynamically
             switch (desc) {
             case "()V":
-                mv.invokeStatic(METHODS_TYPE, WAIT_ON_0);
+                if (spuriousWaits)
+                    invokeStatic(WAIT_ON_SPURIOUSLY_0);
+                else
+                    invokeMethod(WAIT_ON_0);
                 return true;
             case "(J)V":
-                mv.invokeStatic(METHODS_TYPE, WAIT_ON_1);
+                if (spuriousWaits)
+                    invokeStatic(WAIT_ON_SPURIOUSLY_1);
+                else
+                    invokeMethod(WAIT_ON_1);
                 return true;
             case "(JI)V":
-                mv.invokeStatic(METHODS_TYPE, WAIT_ON_2);
+                if (spuriousWaits)
+                    invokeStatic(WAIT_ON_SPURIOUSLY_2);
+                else
+                    invokeMethod(WAIT_ON_2);
                 return true;
             }
         }
@@ -81,10 +138,10 @@ class ChangeTimeMethodsMethodTransformer extends MethodVisitor {
 
     private boolean processNotify(int opcode, String owner, String name, String desc, boolean itf) {
         if (opcode == INVOKEVIRTUAL && name.equals("notify") && desc.equals("()V")) {
-            mv.invokeStatic(METHODS_TYPE, NOTIFY);
+            invokeMethod(NOTIFY);
             return true;
         } else if (opcode == INVOKEVIRTUAL && name.equals("notifyAll") && desc.equals("()V")) {
-            mv.invokeStatic(METHODS_TYPE, NOTIFY_ALL);
+            invokeMethod(NOTIFY_ALL);
             return true;
         }
         return false;
@@ -95,10 +152,10 @@ class ChangeTimeMethodsMethodTransformer extends MethodVisitor {
             return false;
         if (name.equals("sleep")) {
             if (desc.equals("(J)V")) {
-                mv.invokeStatic(METHODS_TYPE, SLEEP_1);
+                invokeMethod(SLEEP_1);
                 return true;
             } else if (desc.equals("(JI)V")) {
-                mv.invokeStatic(METHODS_TYPE, SLEEP_2);
+                invokeMethod(SLEEP_2);
                 return true;
             }
         }
@@ -109,12 +166,40 @@ class ChangeTimeMethodsMethodTransformer extends MethodVisitor {
         if (!owner.equals("java/lang/System"))
             return false;
         if (name.equals("currentTimeMillis") && desc.equals("()J")) {
-            mv.invokeStatic(METHODS_TYPE, TIME_MILLIS);
+            invokeMethod(TIME_MILLIS);
             return true;
         } else if (name.equals("nanoTime") && desc.equals("()J")) {
-            mv.invokeStatic(METHODS_TYPE, NANO_TIME);
+            invokeMethod(NANO_TIME);
             return true;
         }
         return false;
     }
+
+    private void invokeMethod(Method method) {
+        if (invokeDynamic)
+            mv.visitInvokeDynamicInsn(method.getName(), method.getDescriptor(), TIME_CALL_SITE_BOOTSTRAP);
+        else
+            invokeStatic(method);
+    }
+
+    // Unsafe instance is on the stack below the arguments.
+    // jdk.internal.misc.Unsafe is not exported, so TimeCallSite cannot link the original method.
+    private void invokeUnsafeMethod(String owner, Method method) {
+        if (invokeDynamic && owner.equals(UNSAFE_TYPE.getInternalName())) {
+            Type[] argumentTypes = method.getArgumentTypes();
+            Type[] types = new Type[argumentTypes.length + 1];
+            types[0] = UNSAFE_TYPE;
+            System.arraycopy(argumentTypes, 0, types, 1, argumentTypes.length);
+            mv.visitInvokeDynamicInsn(method.getName(), Type.getMethodDescriptor(method.getReturnType(), types),
+                TIME_CALL_SITE_BOOTSTRAP);
+        } else {
+            invokeStatic(method);
+            mv.visitInsn(POP);
+        }
+    }
+
+    // The replacement has the same stack effect as the original invocation, so frames are not changed
+    private void invokeStatic(Method method) {
+        mv.visitMethodInsn(INVOKESTATIC, METHODS_TYPE.getInternalName(), method.getName(), method.getDescriptor(), false);
+    }
 }
@@ -44,6 +44,10 @@ public interface Configuration extends Config {
     @DefaultValue("com.devexperts.logging.*")
     String[] nonTestingCode();
 
+    @Key("timetest.javaLangMethods")
+    @DefaultValue("")
+    String[] javaLangMethods();
+
     @Key("timetest.log.level")
     @DefaultValue("INFO")
     String logLevel();
@@ -59,6 +63,22 @@ public interface Configuration extends Config {
     @DefaultValue("true")
     boolean redefine();
 
+    @Key("timetest.invokedynamic")
+    @DefaultValue("true")
+    boolean invokeDynamic();
+
+    @Key("timetest.verify")
+    @DefaultValue("false")
+    boolean verify();
+
+    @Key("timetest.lazy")
+    @DefaultValue("false")
+    boolean lazy();
+
+    @Key("timetest.lazy.restoreDelay")
+    @DefaultValue("1000")
+    long lazyRestoreDelay();
+
     @Key("timetest.cache.dir")
     String cacheDir();
 
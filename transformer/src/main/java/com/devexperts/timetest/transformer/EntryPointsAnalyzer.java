@@ -0,0 +1,151 @@
+package com.devexperts.timetest.transformer;
+
+/*
+ * #%L
+ * transformer
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static com.devexperts.timetest.transformer.TransformationUtils.ASM_API;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Finds the methods of a testing or non-testing code class which need entry points (see {@link EntryPointsAdder}).
+ * <p>
+ * Entry points are not required for the methods which cannot reach time-based methods, i.e. which
+ * invoke no methods and do not initialize other classes (e.g. getters), and for the private methods
+ * which are invoked by the methods with entry points only, they are executed in the same code already.
+ * Private methods which are referenced by method handles (e.g. lambdas and method references) or invoked
+ * from constructors, which do not have entry points, keep them. Since Java 11 private methods could be
+ * invoked by the nest mates directly (including their constructors), so all private methods of the classes
+ * with nest mates keep entry points.
+ */
+class EntryPointsAnalyzer extends ClassVisitor {
+    private final String className;
+
+    private final Set<String> leafMethods = new HashSet<>();
+    private final Set<String> privateMethods = new HashSet<>();
+    private final Set<String> invokedMethods = new HashSet<>(); // by the methods with entry points
+    private final Set<String> referencedMethods = new HashSet<>(); // by handles or constructors
+    private boolean hasNestMates;
+
+    private EntryPointsAnalyzer(String className) {
+        super(ASM_API);
+        this.className = className;
+    }
+
+    static EntryPointsAnalyzer analyze(ClassReader cr) {
+        EntryPointsAnalyzer analyzer = new EntryPointsAnalyzer(cr.getClassName());
+        cr.accept(analyzer, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return analyzer;
+    }
+
+    /**
+     * Returns {@code true} if the specified method needs an entry point.
+     */
+    boolean isEntryPoint(String mname, String mdesc) {
+        String method = mname + mdesc;
+        if (leafMethods.contains(method))
+            return false;
+        // Private methods which are not invoked directly are invoked via reflection
+        return !privateMethods.contains(method) || hasNestMates
+            || !invokedMethods.contains(method) || referencedMethods.contains(method);
+    }
+
+    @Override
+    public void visitNestHost(String nestHost) {
+        hasNestMates = true;
+    }
+
+    @Override
+    public void visitNestMember(String nestMember) {
+        hasNestMates = true;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String mname, String mdesc, String signature, String[] exceptions) {
+        String method = mname + mdesc;
+        if ((access & ACC_PRIVATE) != 0)
+            privateMethods.add(method);
+        Set<String> invoked = mname.equals("<init>") ? referencedMethods : invokedMethods;
+        return new MethodVisitor(ASM_API) {
+            private boolean leaf = true;
+
+            @Override
+            public void visitTypeInsn(int opcode, String type) {
+                leaf &= opcode != NEW;
+            }
+
+            @Override
+            public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+                leaf &= (opcode != GETSTATIC && opcode != PUTSTATIC) || owner.equals(className);
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                leaf = false;
+                if (owner.equals(className))
+                    invoked.add(name + desc);
+            }
+
+            @Override
+            public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+                leaf = false;
+                visitConstants(bsmArgs);
+            }
+
+            @Override
+            public void visitLdcInsn(Object value) {
+                if (value instanceof Handle || value instanceof ConstantDynamic)
+                    leaf = false;
+                visitConstants(value);
+            }
+
+            @Override
+            public void visitEnd() {
+                if (leaf)
+                    leafMethods.add(method);
+            }
+        };
+    }
+
+    private void visitConstants(Object... constants) {
+        for (Object c : constants) {
+            if (c instanceof Handle) {
+                Handle handle = (Handle) c;
+                if (handle.getOwner().equals(className))
+                    referencedMethods.add(handle.getName() + handle.getDesc());
+            } else if (c instanceof ConstantDynamic) {
+                ConstantDynamic condy = (ConstantDynamic) c;
+                visitConstants(condy.getBootstrapMethod());
+                for (int i = 0; i < condy.getBootstrapMethodArgumentCount(); i++)
+                    visitConstants(condy.getBootstrapMethodArgument(i));
+            }
+        }
+    }
+}
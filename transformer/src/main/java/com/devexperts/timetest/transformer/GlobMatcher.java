@@ -0,0 +1,168 @@
+package com.devexperts.timetest.transformer;
+
+/*
+ * #%L
+ * transformer
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Matches strings against several groups of globs in a single pass, '*' in a glob matches any sequence
+ * of characters and ',' separates alternatives.
+ * <p>
+ * All globs are compiled into one non-deterministic automaton, each its state is a position in a glob.
+ * The deterministic automaton is built lazily from the reached sets of positions,
+ * so matching a string performs one transition per character. The number of deterministic states
+ * is limited, transitions from the new sets of positions are not cached after the limit is reached.
+ * <p>
+ * This class is thread-safe.
+ */
+class GlobMatcher {
+    private static final int MAX_STATES = 10_000;
+    private static final int ASCII_SIZE = 128;
+
+    private final char[] chars; // concatenated globs, every glob ends with an accepting position
+    private final int[] acceptGroups; // groups mask for accepting positions, 0 for other ones
+    private final ConcurrentHashMap<BitSet, State> states = new ConcurrentHashMap<>();
+    private final int maxStates;
+    private final State initial;
+
+    /**
+     * Creates matcher for the specified groups of globs,
+     * the {@code i}-th group corresponds to the {@code 1 << i} bit in {@link #match(String)} result.
+     * A ',' in a glob separates alternatives.
+     */
+    GlobMatcher(String[]... groups) {
+        this(MAX_STATES, groups);
+    }
+
+    // The limit of the cached states is specified by tests
+    GlobMatcher(int maxStates, String[]... groups) {
+        this.maxStates = maxStates;
+        if (groups.length > 31)
+            throw new IllegalArgumentException("Too many groups: " + groups.length);
+        StringBuilder sb = new StringBuilder();
+        StringBuilder accepts = new StringBuilder();
+        for (int g = 0; g < groups.length; g++) {
+            for (String globs : groups[g]) {
+                // Empty alternatives match an empty string, so the trailing ones are kept
+                for (String glob : globs.split(",", -1)) {
+                    sb.append(glob).append('\0');
+                    for (int i = 0; i < glob.length(); i++)
+                        accepts.append('\0');
+                    accepts.append((char) (g + 1));
+                }
+            }
+        }
+        chars = sb.toString().toCharArray();
+        acceptGroups = new int[chars.length];
+        for (int i = 0; i < chars.length; i++) {
+            int g = accepts.charAt(i);
+            acceptGroups[i] = g == 0 ? 0 : 1 << (g - 1);
+        }
+        BitSet positions = new BitSet(chars.length);
+        for (int i = 0; i < chars.length; i++) {
+            // Every glob starts at the beginning or right after the accepting position of the previous one
+            if (i == 0 || acceptGroups[i - 1] != 0)
+                addWithClosure(positions, i);
+        }
+        initial = state(positions);
+    }
+
+    /**
+     * Returns mask of the groups which have a glob matching the specified string.
+     */
+    int match(String s) {
+        State state = initial;
+        for (int i = 0, n = s.length(); i < n && !state.isDead(); i++)
+            state = state.next(s.charAt(i));
+        return state.groups;
+    }
+
+    private State state(BitSet positions) {
+        State state = states.get(positions);
+        if (state != null)
+            return state;
+        state = new State(positions);
+        if (states.size() >= maxStates)
+            return state;
+        state.cached = true;
+        State old = states.putIfAbsent(positions, state);
+        return old != null ? old : state;
+    }
+
+    private void addWithClosure(BitSet positions, int p) {
+        positions.set(p);
+        // '*' matches an empty sequence too
+        while (chars[p] == '*')
+            positions.set(++p);
+    }
+
+    private class State {
+        final BitSet positions;
+        final int groups;
+        volatile boolean cached; // true if this state is stored in the states map
+        private final AtomicReferenceArray<State> asciiNext = new AtomicReferenceArray<>(ASCII_SIZE);
+        private final ConcurrentHashMap<Character, State> otherNext = new ConcurrentHashMap<>();
+
+        State(BitSet positions) {
+            this.positions = positions;
+            int groups = 0;
+            for (int p = positions.nextSetBit(0); p >= 0; p = positions.nextSetBit(p + 1))
+                groups |= acceptGroups[p];
+            this.groups = groups;
+        }
+
+        boolean isDead() {
+            return positions.isEmpty();
+        }
+
+        State next(char c) {
+            State next = c < ASCII_SIZE ? asciiNext.get(c) : otherNext.get(c);
+            if (next != null)
+                return next;
+            next = state(move(c));
+            // Do not keep uncached states reachable
+            if (!next.cached)
+                return next;
+            if (c < ASCII_SIZE)
+                asciiNext.set(c, next);
+            else
+                otherNext.put(c, next);
+            return next;
+        }
+
+        private BitSet move(char c) {
+            BitSet result = new BitSet(chars.length);
+            for (int p = positions.nextSetBit(0); p >= 0; p = positions.nextSetBit(p + 1)) {
+                if (acceptGroups[p] != 0)
+                    continue;
+                if (chars[p] == '*')
+                    addWithClosure(result, p);
+                else if (chars[p] == c)
+                    addWithClosure(result, p + 1);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.devexperts.timetest.transformer;
+
+/*
+ * #%L
+ * transformer
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.jagent.Log;
+import com.devexperts.timetest.Methods;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instruments the classes which only invoke time-based methods while a non-default time provider is used.
+ * <p>
+ * Such classes are not changed on loading, they are retransformed as soon as a non-default time provider
+ * is set or a time domain is started, and are restored to the original bytecode via retransformation
+ * after the default time provider has been used again for the specified delay. The delay prevents
+ * retransformations between consecutive tests which use virtual time. Classes with entry points
+ * and the traced JDK classes are always instrumented, so the testing code is tracked regardless of this mode.
+ * <p>
+ * Classes are retransformed by the worker thread. The thread which sets a non-default time provider
+ * waits until the classes are instrumented without holding the locks of the time provider.
+ * Classes which have been deferred concurrently with instrumentation could be defined after the loaded classes
+ * are taken, the worker thread retransforms them as soon as they are defined.
+ * <p>
+ * Methods which are being executed during retransformation keep their bytecode until they return.
+ */
+public class LazyInstrumentation {
+    // Time to wait for the definition of the classes which have been deferred concurrently with instrumentation
+    private static final long PENDING_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long PENDING_CHECK_PERIOD = 1; // ms
+
+    // Tasks of the worker thread
+    private static final int INSTRUMENT = 0;
+    private static final int RESTORE = 1;
+    private static final int CHECK_PENDING = 2;
+
+    private final Instrumentation inst;
+    private final Log log;
+    private final long restoreDelayNanos;
+
+    // Names of the classes which are instrumented lazily by their loaders, null key for the bootstrap one
+    private final Map<ClassLoader, Set<String>> classes = Collections.synchronizedMap(new WeakHashMap<>());
+    // Deferred classes which have not been found loaded during instrumentation yet
+    private final Map<ClassLoader, Set<String>> pendingClasses = Collections.synchronizedMap(new WeakHashMap<>());
+    private volatile boolean active; // changed by the worker thread only
+    private Thread worker;
+    // The following fields are guarded by this
+    private boolean instrumentRequested; // true if a non-default time provider is used
+    private long requests; // number of the time provider changes
+    private long processedRequests;
+    private long processingRequests; // requests which are taken by the worker thread
+    private long restoreTime;
+    private boolean restoreScheduled;
+    private long pendingDeadline;
+    private boolean pendingChecked;
+
+    /**
+     * @param inst           instrumentation which the transformer is added to with retransformation capability.
+     * @param restoreDelay   delay in milliseconds before the classes are restored after the default time provider is set.
+     */
+    public LazyInstrumentation(Instrumentation inst, Log log, long restoreDelay) {
+        this.inst = inst;
+        this.log = log;
+        this.restoreDelayNanos = TimeUnit.MILLISECONDS.toNanos(restoreDelay);
+    }
+
+    /**
+     * Starts tracking of the time provider changes.
+     */
+    public void install() {
+        worker = new Thread(this::runWorker, "TimeTestLazyInstrumentation");
+        worker.setDaemon(true);
+        worker.start();
+        Methods.setDefaultProviderListener(isDefault -> providerChanged(!isDefault));
+    }
+
+    /**
+     * Registers the class which should be instrumented lazily.
+     *
+     * @return {@code true} if the class should not be transformed now.
+     */
+    boolean defer(ClassLoader loader, String className) {
+        add(classes, loader, className);
+        // The class is pending before the state is checked, so instrumentation which starts
+        // concurrently either finds it or the class is transformed on its definition
+        add(pendingClasses, loader, className);
+        if (active) {
+            remove(pendingClasses, loader, className);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hands the time provider change to the worker thread.
+     * Waits until the classes are instrumented if a non-default time provider is used.
+     */
+    private synchronized void providerChanged(boolean instrument) {
+        instrumentRequested = instrument;
+        long request = ++requests;
+        notifyAll();
+        if (!instrument)
+            return;
+        boolean interrupted = false;
+        while (processedRequests < request && worker.isAlive()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void runWorker() {
+        try {
+            while (true) {
+                switch (nextTask()) {
+                    case INSTRUMENT:
+                        if (!active) {
+                            active = true;
+                            retransform(loadedClasses(classes));
+                        }
+                        synchronized (this) {
+                            processedRequests = processingRequests;
+                            notifyAll();
+                        }
+                        break;
+                    case RESTORE:
+                        if (active) {
+                            active = false;
+                            retransform(loadedClasses(classes));
+                        }
+                        break;
+                    case CHECK_PENDING:
+                        Class<?>[] defined = loadedClasses(pendingClasses);
+                        if (defined.length > 0)
+                            retransform(defined);
+                        break;
+                    default:
+                        throw new AssertionError();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Lazily instrumented classes are not changed anymore: ", e);
+        } finally {
+            // Threads which wait for instrumentation check that this thread is alive
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    // Waits for the next task of the worker thread
+    private synchronized int nextTask() throws InterruptedException {
+        while (true) {
+            long now = System.nanoTime();
+            if (requests != processedRequests) {
+                if (instrumentRequested) {
+                    restoreScheduled = false;
+                    pendingDeadline = now + PENDING_TIMEOUT_NANOS;
+                    processingRequests = requests;
+                    return INSTRUMENT;
+                }
+                restoreScheduled = true;
+                restoreTime = now + restoreDelayNanos;
+                processedRequests = requests;
+                continue;
+            }
+            if (restoreScheduled && now - restoreTime >= 0) {
+                restoreScheduled = false;
+                return RESTORE;
+            }
+            if (active && !pendingClasses.isEmpty()) {
+                if (now - pendingDeadline >= 0) {
+                    log.debug("Deferred classes are not defined: ", pendingClasses);
+                    pendingClasses.clear();
+                    continue;
+                }
+                pendingChecked = !pendingChecked;
+                if (pendingChecked)
+                    return CHECK_PENDING;
+                wait(PENDING_CHECK_PERIOD);
+                continue;
+            }
+            if (restoreScheduled)
+                wait(TimeUnit.NANOSECONDS.toMillis(restoreTime - now) + 1);
+            else
+                wait();
+        }
+    }
+
+    // Should be invoked by the worker thread only, the transformer changes the classes according to the current state
+    private void retransform(Class<?>[] loaded) {
+        long startTime = System.nanoTime();
+        try {
+            inst.retransformClasses(loaded);
+        } catch (Exception | LinkageError e) {
+            // Retransform the classes one by one to skip the failed ones
+            for (Class<?> c : loaded) {
+                try {
+                    inst.retransformClasses(c);
+                } catch (Exception | LinkageError ce) {
+                    log.warn("Cannot retransform ", c.getName(), ": ", ce);
+                }
+            }
+        }
+        log.debug(active ? "Instrumented " : "Restored ", loaded.length, " classes in ",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), " ms");
+    }
+
+    // Loaded classes are not pending anymore
+    private Class<?>[] loadedClasses(Map<ClassLoader, Set<String>> classNames) {
+        List<Class<?>> result = new ArrayList<>();
+        Class<?>[] allLoadedClasses = inst.getAllLoadedClasses();
+        // JVM could be shutting down already, the worker thread is a daemon one
+        if (allLoadedClasses == null)
+            return new Class<?>[0];
+        for (Class<?> c : allLoadedClasses) {
+            ClassLoader loader = c.getClassLoader();
+            Set<String> names = classNames.get(loader);
+            String name = c.getName().replace('.', '/');
+            if (names != null && names.contains(name) && inst.isModifiableClass(c)) {
+                result.add(c);
+                remove(pendingClasses, loader, name);
+            }
+        }
+        return result.toArray(new Class<?>[0]);
+    }
+
+    private static void add(Map<ClassLoader, Set<String>> classNames, ClassLoader loader, String className) {
+        classNames.computeIfAbsent(loader, l -> ConcurrentHashMap.newKeySet()).add(className);
+    }
+
+    private static void remove(Map<ClassLoader, Set<String>> classNames, ClassLoader loader, String className) {
+        synchronized (classNames) {
+            Set<String> names = classNames.get(loader);
+            if (names != null && names.remove(className) && names.isEmpty())
+                classNames.remove(loader);
+        }
+    }
+}
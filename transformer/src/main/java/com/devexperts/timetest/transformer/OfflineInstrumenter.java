@@ -0,0 +1,205 @@
+package com.devexperts.timetest.transformer;
+
+/*
+ * #%L
+ * transformer
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.jagent.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Instruments classes ahead of time, so tests do not need the agent and only require
+ * the {@code core} module in the classpath.
+ * <p>
+ * Instrumented copies of class directories and jars are written to the specified targets.
+ * Only classes which are changed since the previous instrumentation are processed. The version and
+ * the configuration are stored in the {@code <target>.fingerprint} file, all classes are processed
+ * again if they are changed.
+ * <p>
+ * Note that JDK classes cannot be instrumented in this way, so {@link Thread#start()}
+ * invocations are traced at call sites in the instrumented code only.
+ */
+public class OfflineInstrumenter {
+    private final TimeTestTransformer transformer;
+    private final Log log;
+
+    public OfflineInstrumenter(Configuration configuration, Log log, String version) {
+        this.transformer = new TimeTestTransformer(configuration, log, version, true);
+        this.log = log;
+    }
+
+    /**
+     * Copies the specified directory to the target one instrumenting classes.
+     * Files which are not changed since the previous invocation with the same version and configuration are skipped,
+     * files which are removed from the source directory are removed from the target one.
+     *
+     * @param loader class loader which is used to compute frames in the instrumented classes.
+     * @return number of processed files.
+     */
+    public int instrumentDirectory(File source, File target, ClassLoader loader) throws IOException {
+        Path sourceRoot = source.toPath();
+        Path targetRoot = target.toPath();
+        if (!Files.isDirectory(sourceRoot))
+            return 0;
+        // Remove stale files
+        if (Files.isDirectory(targetRoot)) {
+            List<Path> targetFiles;
+            try (Stream<Path> files = Files.walk(targetRoot)) {
+                targetFiles = files.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            for (Path file : targetFiles) {
+                if (!Files.exists(sourceRoot.resolve(targetRoot.relativize(file))))
+                    Files.delete(file);
+            }
+        }
+        List<Path> sourceFiles;
+        try (Stream<Path> files = Files.walk(sourceRoot)) {
+            sourceFiles = files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        boolean upToDate = isFingerprintUpToDate(target);
+        int processed = 0;
+        for (Path file : sourceFiles) {
+            Path targetFile = targetRoot.resolve(sourceRoot.relativize(file));
+            if (upToDate && Files.exists(targetFile)
+                && Files.getLastModifiedTime(targetFile).compareTo(Files.getLastModifiedTime(file)) >= 0)
+            {
+                continue;
+            }
+            Files.createDirectories(targetFile.getParent());
+            String name = sourceRoot.relativize(file).toString().replace(File.separatorChar, '/');
+            if (isClass(name)) {
+                Files.write(targetFile, transform(name, Files.readAllBytes(file), loader));
+            } else {
+                Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            processed++;
+        }
+        writeFingerprint(target);
+        log.info("Instrumented ", processed, " files from ", source, " into ", target);
+        return processed;
+    }
+
+    /**
+     * Copies the specified jar to the target one instrumenting classes.
+     * Signatures are removed from the target jar since they are not valid after instrumentation.
+     *
+     * @param loader class loader which is used to compute frames in the instrumented classes.
+     * @return {@code false} if the target jar is up to date.
+     */
+    public boolean instrumentJar(File source, File target, ClassLoader loader) throws IOException {
+        if (isFingerprintUpToDate(target) && target.exists() && target.lastModified() >= source.lastModified())
+            return false;
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Cannot create directory " + parent);
+        File tmp = new File(parent, target.getName() + ".tmp");
+        try (JarFile jar = new JarFile(source);
+             JarOutputStream out = new JarOutputStream(Files.newOutputStream(tmp.toPath())))
+        {
+            for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); ) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (isSignature(name))
+                    continue;
+                out.putNextEntry(new JarEntry(name));
+                if (!entry.isDirectory()) {
+                    try (InputStream in = jar.getInputStream(entry)) {
+                        if (isClass(name))
+                            out.write(transform(name, readAll(in), loader));
+                        else
+                            copy(in, out);
+                    }
+                }
+                out.closeEntry();
+            }
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        writeFingerprint(target);
+        log.info("Instrumented ", source, " into ", target);
+        return true;
+    }
+
+    // The file is written after the target is instrumented completely
+    private boolean isFingerprintUpToDate(File target) throws IOException {
+        Path file = fingerprintFile(target);
+        return Files.exists(file) && new String(Files.readAllBytes(file), StandardCharsets.UTF_8).equals(transformer.fingerprint());
+    }
+
+    private void writeFingerprint(File target) throws IOException {
+        Path file = fingerprintFile(target);
+        Files.createDirectories(file.getParent());
+        Files.write(file, transformer.fingerprint().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Path fingerprintFile(File target) {
+        return new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".fingerprint").toPath();
+    }
+
+    private byte[] transform(String fileName, byte[] bytes, ClassLoader loader) throws IOException {
+        String className = fileName.substring(0, fileName.length() - ".class".length());
+        try {
+            byte[] result = transformer.transform(loader, className, null, null, bytes);
+            return result == null ? bytes : result;
+        } catch (IllegalClassFormatException e) {
+            throw new IOException("Cannot instrument " + className, e);
+        }
+    }
+
+    // Module descriptors and multi-release versions are copied as is
+    private static boolean isClass(String name) {
+        return name.endsWith(".class") && !name.endsWith("module-info.class") && !name.startsWith("META-INF/");
+    }
+
+    private static boolean isSignature(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0)
+            return false;
+        return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC");
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(in, out);
+        return out.toByteArray();
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[8192];
+        for (int n; (n = in.read(buf)) > 0; )
+            out.write(buf, 0, n);
+    }
+}
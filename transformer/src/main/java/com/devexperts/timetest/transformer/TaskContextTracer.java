@@ -0,0 +1,249 @@
+package com.devexperts.timetest.transformer;
+
+/*
+ * #%L
+ * transformer
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+
+import static com.devexperts.timetest.transformer.TransformationUtils.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Propagates the testing code flag from the threads which submit tasks to the JDK executors
+ * ({@code ThreadPoolExecutor}, {@code ScheduledThreadPoolExecutor}, {@code ForkJoinPool}
+ * including {@code CompletableFuture} async stages, and {@code Timer}) to the threads which execute them,
+ * since the threads of shared executors are not started from the testing code.
+ * <p>
+ * Submitted tasks are traced at the entry of the submission methods, their executions are surrounded
+ * with entering and leaving the testing code. The thread of a {@code Timer} waits for the next task
+ * in the time of its submitter, it could wait on the queue outside of the testing code, so {@code Timer}
+ * notifies the queue in real time too. Delays of {@code ScheduledThreadPoolExecutor} tasks are measured
+ * in the time of their submitters, see {@code Methods.taskDelay}. Frames are computed for the transformed classes and
+ * {@link org.objectweb.asm.commons.TryCatchBlockSorter} is required for the inserted handlers
+ * to precede the enclosing ones.
+ */
+class TaskContextTracer extends MethodVisitor {
+    private static final Type THROWABLE_TYPE = Type.getType(Throwable.class);
+    private static final String FORK_JOIN_TASK = "java/util/concurrent/ForkJoinTask";
+    private static final Type FORK_JOIN_TASK_TYPE = Type.getObjectType(FORK_JOIN_TASK);
+    private static final String SCHEDULED_FUTURE_TASK = "java/util/concurrent/ScheduledThreadPoolExecutor$ScheduledFutureTask";
+    private static final String TIMER_THREAD = "java/util/TimerThread";
+
+    private final GeneratorAdapter mv;
+    private final String className;
+    private final String mname;
+    private final String mdesc;
+
+    // Task executions, delays and the loop of TimerThread are surrounded with try-finally
+    private final Label tryLabel = new Label();
+    private final Label catchLabel = new Label();
+    private int isInTestingCodeAlreadyLocal = -1;
+
+    TaskContextTracer(String className, String mname, String mdesc, GeneratorAdapter mv) {
+        super(ASM_API, mv);
+        this.mv = mv;
+        this.className = className;
+        this.mname = mname;
+        this.mdesc = mdesc;
+    }
+
+    /**
+     * Returns {@code true} if the methods of the specified class submit or execute tasks.
+     */
+    static boolean isTracedClass(String className) {
+        switch (className) {
+        case "java/util/concurrent/ThreadPoolExecutor":
+        case "java/util/concurrent/ScheduledThreadPoolExecutor":
+        case "java/util/concurrent/ForkJoinPool":
+        case FORK_JOIN_TASK:
+        case SCHEDULED_FUTURE_TASK:
+        case "java/util/Timer":
+        case TIMER_THREAD:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns {@code true} if the specified traced class waits in a loop, so it could be woken up
+     * by the notifications which are not performed via the time provider.
+     */
+    static boolean hasSpuriousWaits(String className) {
+        return className.equals(TIMER_THREAD);
+    }
+
+    @Override
+    public void visitCode() {
+        super.visitCode();
+        if (isSubmission()) {
+            if (className.equals(FORK_JOIN_TASK)) {
+                mv.loadThis();
+                mv.invokeStatic(METHODS_TYPE, SUBMIT_TASK_METHOD);
+            } else {
+                // Task is the first argument, ForkJoinPool.poolSubmit has a boolean one before
+                Type[] argumentTypes = Type.getArgumentTypes(mdesc);
+                for (int i = 0; i < argumentTypes.length; i++) {
+                    if (argumentTypes[i].getSort() == Type.OBJECT) {
+                        mv.loadArg(i);
+                        mv.invokeStatic(METHODS_TYPE, SUBMIT_TASK_METHOD);
+                        break;
+                    }
+                }
+            }
+        } else if (isExecution() || isDelay() || isTimerLoop()) {
+            if (isTimerLoop()) {
+                mv.invokeStatic(METHODS_TYPE, IS_IN_TESTING_CODE_METHOD);
+            } else {
+                mv.loadThis();
+                mv.invokeStatic(METHODS_TYPE, ENTER_TASK_METHOD);
+            }
+            isInTestingCodeAlreadyLocal = mv.newLocal(Type.BOOLEAN_TYPE);
+            mv.storeLocal(isInTestingCodeAlreadyLocal);
+            mv.visitLabel(tryLabel);
+        }
+    }
+
+    private boolean isSubmission() {
+        switch (className) {
+        case "java/util/concurrent/ThreadPoolExecutor":
+            return mname.equals("execute") && mdesc.equals("(Ljava/lang/Runnable;)V");
+        case "java/util/concurrent/ScheduledThreadPoolExecutor":
+            return mname.equals("delayedExecute");
+        case "java/util/concurrent/ForkJoinPool":
+            // Different JDK versions use different methods, all of them are traced
+            return (mname.equals("externalPush") || mname.equals("externalSubmit")
+                || mname.equals("poolSubmit") || mname.equals("lazySubmit"))
+                && mdesc.contains(FORK_JOIN_TASK_TYPE.getDescriptor());
+        case FORK_JOIN_TASK:
+            return mname.equals("fork") && mdesc.startsWith("()");
+        case "java/util/Timer":
+            return mname.equals("sched");
+        default:
+            return false;
+        }
+    }
+
+    // ForkJoinTask.doExec is executed by workers and by joining threads
+    private boolean isExecution() {
+        return className.equals(FORK_JOIN_TASK) && mname.equals("doExec") && mdesc.equals("()I");
+    }
+
+    // Delay of a ScheduledThreadPoolExecutor task is compared with the trigger time computed by its submitter
+    private boolean isDelay() {
+        return className.equals(SCHEDULED_FUTURE_TASK) && mname.equals("getDelay")
+            && mdesc.equals("(Ljava/util/concurrent/TimeUnit;)J");
+    }
+
+    // TimerThread selects the time of the next task, see Methods.selectTask
+    private boolean isTimerLoop() {
+        return className.equals(TIMER_THREAD) && mname.equals("mainLoop") && mdesc.equals("()V");
+    }
+
+    // Worker threads of ThreadPoolExecutor and Timer invoke the tasks directly
+    private boolean isTaskInvocation(String owner, String name, String desc) {
+        if (!name.equals("run") || !desc.equals("()V"))
+            return false;
+        return (className.equals("java/util/concurrent/ThreadPoolExecutor") && mname.equals("runWorker")
+                && owner.equals("java/lang/Runnable"))
+            || (isTimerLoop() && owner.equals("java/util/TimerTask"));
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        if (opcode == INVOKEVIRTUAL && className.equals("java/util/Timer") && desc.equals("()V")) {
+            if (name.equals("notify")) {
+                mv.invokeStatic(METHODS_TYPE, NOTIFY_SHARED_METHOD);
+                return;
+            }
+            if (name.equals("notifyAll")) {
+                mv.invokeStatic(METHODS_TYPE, NOTIFY_ALL_SHARED_METHOD);
+                return;
+            }
+        }
+        if (isTimerLoop() && owner.equals("java/util/TaskQueue") && name.equals("getMin")) {
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+            mv.dup();
+            mv.loadLocal(isInTestingCodeAlreadyLocal);
+            mv.invokeStatic(METHODS_TYPE, SELECT_TASK_METHOD);
+            return;
+        }
+        if (!isTaskInvocation(owner, name, desc)) {
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+            return;
+        }
+        Label start = new Label();
+        Label end = new Label();
+        Label handler = new Label();
+        Label next = new Label();
+        mv.visitTryCatchBlock(start, end, handler, null);
+        mv.dup();
+        mv.invokeStatic(METHODS_TYPE, ENTER_TASK_METHOD);
+        int isInTestingCodeAlready = mv.newLocal(Type.BOOLEAN_TYPE);
+        mv.storeLocal(isInTestingCodeAlready);
+        mv.visitLabel(start);
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+        mv.visitLabel(end);
+        mv.loadLocal(isInTestingCodeAlready);
+        mv.invokeStatic(METHODS_TYPE, LEAVE_TESTING_CODE_METHOD);
+        mv.goTo(next);
+        mv.visitLabel(handler);
+        leaveAndRethrow(isInTestingCodeAlready);
+        mv.visitLabel(next);
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        if (isInTestingCodeAlreadyLocal >= 0 && opcode >= IRETURN && opcode <= RETURN) {
+            if (isDelay()) {
+                mv.loadLocal(isInTestingCodeAlreadyLocal);
+                mv.loadArg(0);
+                mv.invokeStatic(METHODS_TYPE, TASK_DELAY_METHOD);
+            }
+            mv.loadLocal(isInTestingCodeAlreadyLocal);
+            mv.invokeStatic(METHODS_TYPE, LEAVE_TESTING_CODE_METHOD);
+        }
+        super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        if (isInTestingCodeAlreadyLocal >= 0) {
+            mv.visitLabel(catchLabel);
+            leaveAndRethrow(isInTestingCodeAlreadyLocal);
+            mv.visitTryCatchBlock(tryLabel, catchLabel, catchLabel, null);
+        }
+        super.visitMaxs(maxStack, maxLocals);
+    }
+
+    private void leaveAndRethrow(int isInTestingCodeAlreadyLocal) {
+        int throwableLocal = mv.newLocal(THROWABLE_TYPE);
+        mv.storeLocal(throwableLocal);
+        mv.loadLocal(isInTestingCodeAlreadyLocal);
+        mv.invokeStatic(METHODS_TYPE, LEAVE_TESTING_CODE_METHOD);
+        mv.loadLocal(throwableLocal);
+        mv.throwException();
+    }
+}
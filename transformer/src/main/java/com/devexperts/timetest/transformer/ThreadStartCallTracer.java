@@ -0,0 +1,57 @@
+package com.devexperts.timetest.transformer;
+
+/*
+ * #%L
+ * transformer
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.function.Predicate;
+
+import static com.devexperts.timetest.transformer.TransformationUtils.ASM_API;
+import static com.devexperts.timetest.transformer.TransformationUtils.METHODS_TYPE;
+import static com.devexperts.timetest.transformer.TransformationUtils.START_THREAD_CALL_METHOD;
+
+/**
+ * Traces {@link Thread#start()} invocations at call sites.
+ * It is used instead of {@link ThreadStartTracer} when {@link Thread} cannot be instrumented,
+ * the invocations are replaced with the ones of {@code Methods.startThreadCall}, which forgets the thread
+ * if it fails to start.
+ */
+class ThreadStartCallTracer extends MethodVisitor {
+    private final Predicate<String> isThread;
+
+    ThreadStartCallTracer(MethodVisitor mv, Predicate<String> isThread) {
+        super(ASM_API, mv);
+        this.isThread = isThread;
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        if (opcode == Opcodes.INVOKEVIRTUAL && name.equals("start") && desc.equals("()V") && isThread.test(owner)) {
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, METHODS_TYPE.getInternalName(),
+                START_THREAD_CALL_METHOD.getName(), START_THREAD_CALL_METHOD.getDescriptor(), false);
+            return;
+        }
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+    }
+}
@@ -22,13 +22,22 @@ package com.devexperts.timetest.transformer;
  * #L%
  */
 
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.commons.GeneratorAdapter;
 
 import static com.devexperts.timetest.transformer.TransformationUtils.ASM_API;
 import static com.devexperts.timetest.transformer.TransformationUtils.METHODS_TYPE;
 import static com.devexperts.timetest.transformer.TransformationUtils.START_THREAD_METHOD;
+import static com.devexperts.timetest.transformer.TransformationUtils.THREAD_START_FAILED_METHOD;
+import static com.devexperts.timetest.transformer.TransformationUtils.VIRTUAL_THREAD;
 
+/**
+ * Traces starts of the threads in {@link Thread} and {@code VirtualThread} start methods.
+ * The thread is registered before its native start and is forgotten if the start fails,
+ * so {@link org.objectweb.asm.commons.TryCatchBlockSorter} is required for the inserted handler
+ * to take precedence over the ones of the method.
+ */
 public class ThreadStartTracer extends MethodVisitor {
     private final GeneratorAdapter mv;
 
@@ -39,9 +48,28 @@ public class ThreadStartTracer extends MethodVisitor {
 
     @Override
     public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-        if (owner.equals("java/lang/Thread") && name.equals("start0")) {
+        // Virtual threads are started by submitting their continuations
+        if ((owner.equals("java/lang/Thread") && name.equals("start0"))
+            || (owner.equals(VIRTUAL_THREAD) && name.equals("submitRunContinuation")))
+        {
             mv.dup();
             mv.invokeStatic(METHODS_TYPE, START_THREAD_METHOD);
+            // The thread is started by its own method, so it is this
+            Label start = new Label();
+            Label end = new Label();
+            Label handler = new Label();
+            Label done = new Label();
+            mv.visitTryCatchBlock(start, end, handler, "java/lang/Throwable");
+            mv.visitLabel(start);
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+            mv.visitLabel(end);
+            mv.goTo(done);
+            mv.visitLabel(handler);
+            mv.loadThis();
+            mv.invokeStatic(METHODS_TYPE, THREAD_START_FAILED_METHOD);
+            mv.throwException();
+            mv.visitLabel(done);
+            return;
         }
         super.visitMethodInsn(opcode, owner, name, desc, itf);
     }
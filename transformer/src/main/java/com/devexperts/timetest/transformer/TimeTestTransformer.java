@@ -32,6 +32,7 @@ import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.GeneratorAdapter;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
 import org.objectweb.asm.commons.TryCatchBlockSorter;
@@ -40,93 +41,233 @@ import org.objectweb.asm.util.CheckClassAdapter;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.Arrays;
-import java.util.List;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import static com.devexperts.timetest.transformer.TransformationUtils.ASM_API;
+import static com.devexperts.timetest.transformer.TransformationUtils.VIRTUAL_THREADS;
+import static com.devexperts.timetest.transformer.TransformationUtils.isThreadClass;
+import static com.devexperts.timetest.transformer.TransformationUtils.referencesClass;
+import static com.devexperts.timetest.transformer.TransformationUtils.skipNewAttributes;
 
 public class TimeTestTransformer extends CachingClassFileTransformer {
-    private final List<Pattern> includes;
-    private final List<Pattern> excludes;
-    private final List<Pattern> testClassesPatterns;
-    private final List<Pattern> nonTestClassesPatterns;
+    // Groups of class name globs in GlobMatcher
+    private static final int INCLUDE = 1;
+    private static final int EXCLUDE = 1 << 1;
+    private static final int TESTING_CODE = 1 << 2;
+    private static final int NON_TESTING_CODE = 1 << 3;
+    private static final int JAVA_LANG_CLASSES = 1 << 4;
+    private static final int JAVA_LANG_METHODS = 1 << 5; // matches "<class>/<method>" strings
+
+    private final GlobMatcher classNameMatcher;
     private final ClassInfoCache ciCache;
+    private final boolean invokeDynamic;
+    private final boolean verify;
+    private final boolean traceThreadStartCalls;
+    private final String fingerprint;
+    private final TransformedClassCache cache; // null if caching is disabled
+    private volatile LazyInstrumentation lazyInstrumentation; // null if all classes are instrumented on loading
 
     public TimeTestTransformer(Configuration configuration, Log log, String agentVersion) {
+        this(configuration, log, agentVersion, false);
+    }
+
+    /**
+     * @param traceThreadStartCalls {@code true} if {@link Thread#start()} invocations should be traced
+     *                              at call sites since {@link Thread} itself is not instrumented.
+     */
+    TimeTestTransformer(Configuration configuration, Log log, String agentVersion, boolean traceThreadStartCalls) {
         super(log, agentVersion);
+        this.traceThreadStartCalls = traceThreadStartCalls;
         this.ciCache = new ClassInfoCache(log);
-        includes = createPatterns(configuration.include());
-        excludes = createPatterns(configuration.exclude());
-        testClassesPatterns = createPatterns(configuration.testingCode());
-        nonTestClassesPatterns = createPatterns(configuration.nonTestingCode());
+        classNameMatcher = new GlobMatcher(
+            toInternalNames(configuration.include()),
+            toInternalNames(configuration.exclude()),
+            toInternalNames(configuration.testingCode()),
+            toInternalNames(configuration.nonTestingCode()),
+            toInternalNames(javaLangClasses(configuration.javaLangMethods())),
+            toInternalNames(configuration.javaLangMethods()));
+        invokeDynamic = configuration.invokeDynamic();
+        verify = configuration.verify();
+        fingerprint = fingerprint(configuration, agentVersion, traceThreadStartCalls);
+        cache = configuration.cacheDir() == null ? null : TransformedClassCache.open(configuration.cacheDir(), fingerprint, log);
+    }
+
+    /**
+     * Instruments the classes which only invoke time-based methods while a non-default time provider is used.
+     * The transformer should be added to the instrumentation with retransformation capability.
+     */
+    public void setLazyInstrumentation(LazyInstrumentation lazyInstrumentation) {
+        this.lazyInstrumentation = lazyInstrumentation;
+    }
+
+    /**
+     * Returns the agent version and the effective configuration which affect the transformation result.
+     */
+    String fingerprint() {
+        return fingerprint;
+    }
+
+    private static String fingerprint(Configuration configuration, String agentVersion, boolean traceThreadStartCalls) {
+        return String.join("\n", agentVersion,
+            String.join(",", configuration.include()),
+            String.join(",", configuration.exclude()),
+            String.join(",", configuration.testingCode()),
+            String.join(",", configuration.nonTestingCode()),
+            String.join(",", configuration.javaLangMethods()),
+            String.valueOf(configuration.invokeDynamic()),
+            String.valueOf(configuration.verify()),
+            String.valueOf(traceThreadStartCalls));
     }
 
-    private List<Pattern> createPatterns(String[] strPatterns) {
-        return Arrays.stream(strPatterns)
-            .map(s -> GlobUtil.compile(s.replaceAll("\\.", "/")))
-            .collect(Collectors.toList());
+    // Method globs are "<class glob>.<method glob>"
+    private static String[] javaLangClasses(String[] methodGlobs) {
+        return Arrays.stream(methodGlobs)
+            .flatMap(globs -> Arrays.stream(globs.split(",")))
+            .map(glob -> glob.substring(0, Math.max(glob.lastIndexOf('.'), 0)))
+            .toArray(String[]::new);
+    }
+
+    private static String[] toInternalNames(String[] globs) {
+        return Arrays.stream(globs)
+            .map(s -> s.replace('.', '/'))
+            .toArray(String[]::new);
     }
 
     @Override
     protected boolean processClass(String className, ClassLoader loader) {
-        if ((className.startsWith("com/devexperts/timetest/") && !className.startsWith("com/devexperts/timetest/test/"))
+        if ((className.startsWith("com/devexperts/timetest/") && !className.startsWith("com/devexperts/timetest/test/")
+                && !className.startsWith("com/devexperts/timetest/benchmarks/"))
                 || className.startsWith("com/sun/")
                 || (className.startsWith("sun/") && !className.startsWith("sun/swing/") && !className.startsWith("sun/awt/"))
-                || className.startsWith("jdk/")
-                || (className.startsWith("java/lang") && !className.equals("java/lang/Thread")))
+                || className.startsWith("jdk/"))
         {
             return false;
         }
-        boolean process = false;
-        if (includes.stream().anyMatch(p -> p.matcher(className).matches()))
-            process = true;
-        if (excludes.stream().anyMatch(p -> p.matcher(className).matches()))
-            process = false;
-        return process;
+        int groups = classNameMatcher.match(className);
+        // Other java.lang classes are processed if only some their methods are allowed explicitly
+        if (className.startsWith("java/lang") && !isThreadClass(className) && (groups & JAVA_LANG_CLASSES) == 0)
+            return false;
+        return (groups & INCLUDE) != 0 && (groups & EXCLUDE) == 0;
     }
 
-    private boolean inTestingCode(String className) {
-        return testClassesPatterns.stream().anyMatch(p -> p.matcher(className).matches());
+    @Override
+    public byte[] transformImpl(ClassLoader loader, final String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+                            byte[] classfileBuffer) throws IllegalClassFormatException {
+        LazyInstrumentation lazyInstrumentation = this.lazyInstrumentation;
+        if (lazyInstrumentation != null && isTimeMethodsOnly(loader, className)
+            && TransformationUtils.referencesTimeMethods(new ClassReader(classfileBuffer))
+            && lazyInstrumentation.defer(loader, className))
+        {
+            putClassInfo(loader, className, classfileBuffer);
+            return classfileBuffer;
+        }
+        if (cache == null)
+            return transform(loader, className, classfileBuffer);
+        byte[] key = TransformedClassCache.key(classfileBuffer, loader == null);
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            putClassInfo(loader, className, classfileBuffer);
+            return cached == TransformedClassCache.UNCHANGED ? classfileBuffer : cached;
+        }
+        byte[] result = transform(loader, className, classfileBuffer);
+        cache.put(key, result == classfileBuffer ? TransformedClassCache.UNCHANGED : result);
+        return result;
     }
 
-    private boolean inNonTestingCode(String className) {
-        return nonTestClassesPatterns.stream().anyMatch(p -> p.matcher(className).matches());
+    // Class info is required for frames computation in other classes
+    private void putClassInfo(ClassLoader loader, String className, byte[] classfileBuffer) {
+        ClassInfoVisitor ciVisitor = new ClassInfoVisitor();
+        new ClassReader(classfileBuffer).accept(skipNewAttributes(ciVisitor), ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        ciCache.getOrInitClassInfoMap(loader).put(className, ciVisitor.buildClassInfo());
     }
 
-    @Override
-    public byte[] transformImpl(ClassLoader loader, final String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
-                            byte[] classfileBuffer) throws IllegalClassFormatException {
+    /**
+     * Returns {@code true} if the class does not have entry points and is not traced,
+     * so it could be changed only to replace time-based methods invocations.
+     */
+    private boolean isTimeMethodsOnly(ClassLoader loader, String className) {
+        int groups = classNameMatcher.match(className);
+        return !traceThreadStartCalls && (groups & (TESTING_CODE | NON_TESTING_CODE)) == 0 && !isThreadClass(className)
+            && !(loader == null && TaskContextTracer.isTracedClass(className));
+    }
+
+    private byte[] transform(ClassLoader loader, final String className, byte[] classfileBuffer) {
         ClassReader cr = new ClassReader(classfileBuffer);
+        int groups = classNameMatcher.match(className);
+        boolean testClass = (groups & TESTING_CODE) != 0;
+        boolean nonTestClass = (groups & NON_TESTING_CODE) != 0;
+        boolean testingCode = nonTestClass ? false : testClass;
+        boolean threadClass = isThreadClass(className);
+        boolean javaLangClass = className.startsWith("java/lang/");
+        boolean taskClass = loader == null && TaskContextTracer.isTracedClass(className);
+        // Classes without entry points and time-based methods invocations do not need to be changed
+        boolean unchanged = isTimeMethodsOnly(loader, className) && !TransformationUtils.referencesTimeMethods(cr);
         ClassInfoVisitor ciVisitor = new ClassInfoVisitor();
-        cr.accept(ciVisitor, 0);
+        cr.accept(skipNewAttributes(ciVisitor), unchanged ? ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES : 0);
         ClassInfo cInfo = ciVisitor.buildClassInfo();
         ciCache.getOrInitClassInfoMap(loader).put(className, cInfo);
-        ClassWriter cw = new FrameClassWriter(loader, ciCache, cInfo.getVersion());
-        boolean testClass = inTestingCode(className);
-        boolean nonTestClass = inNonTestingCode(className);
-        boolean testingCode = nonTestClass ? false : testClass;
+        if (unchanged)
+            return classfileBuffer;
+        int version = cInfo.getVersion() & 0xFFFF;
+        // Replacements of time-based methods keep the stack effect, so frames are copied as is
+        // and the constant pool is reused. Frames are computed for the classes with inserted code
+        // and for old class files which could contain subroutines. Invocations of VirtualThreads methods
+        // are replaced with conditional ones.
+        boolean computeFrames = verify || traceThreadStartCalls || testClass || nonTestClass || threadClass || taskClass
+            || version < Opcodes.V1_7 || referencesClass(cr, VIRTUAL_THREADS);
+        ClassWriter cw = computeFrames ? new FrameClassWriter(loader, ciCache, cInfo.getVersion()) : new ClassWriter(cr, 0);
+        // invokedynamic requires Java 7 class files, and it is not used in the bootstrap classes
+        // to avoid recursion in java.lang.invoke infrastructure initialization
+        boolean useInvokeDynamic = invokeDynamic && loader != null && version >= Opcodes.V1_7;
+        EntryPointsAnalyzer entryPoints = testClass || nonTestClass ? EntryPointsAnalyzer.analyze(cr) : null;
         ClassVisitor cv = new ClassVisitor(ASM_API, cw) {
             @Override
             public MethodVisitor visitMethod(int access, String mname, String mdesc, String signature, String[] exceptions) {
                 MethodVisitor mv = super.visitMethod(access, mname, mdesc, signature, exceptions);
-                if (className.equals("java/lang/Thread")) {
-                    if (mname.equals("start"))
-                        return new ThreadStartTracer(new GeneratorAdapter(mv, access, mname, mdesc));
-                    else
+                if (threadClass && mname.equals("start")) {
+                    mv = new TryCatchBlockSorter(mv, access, mname, mdesc, signature, exceptions);
+                    return new ThreadStartTracer(new GeneratorAdapter(mv, access, mname, mdesc));
+                }
+                if (javaLangClass) {
+                    // JDK methods wait in a loop, so they are woken up by the notifications
+                    // of the JVM and of the non-testing code too (e.g. Thread.join)
+                    if ((classNameMatcher.match(className + "/" + mname) & JAVA_LANG_METHODS) == 0)
                         return mv;
+                    return new ChangeTimeMethodsMethodTransformer(mv, useInvokeDynamic, true);
+                }
+                if (computeFrames)
+                    mv = new JSRInlinerAdapter(mv, access, mname, mdesc, signature, exceptions);
+                mv = new ChangeTimeMethodsMethodTransformer(mv, useInvokeDynamic,
+                    taskClass && TaskContextTracer.hasSpuriousWaits(className));
+                if (traceThreadStartCalls)
+                    mv = new ThreadStartCallTracer(mv, owner -> isThread(owner, loader));
+                if (taskClass) {
+                    mv = new TryCatchBlockSorter(mv, access, mname, mdesc, signature, exceptions);
+                    mv = new TaskContextTracer(className, mname, mdesc, new GeneratorAdapter(mv, access, mname, mdesc));
                 }
-                mv = new JSRInlinerAdapter(mv, access, mname, mdesc, signature, exceptions);
-                mv = new ChangeTimeMethodsMethodTransformer(new GeneratorAdapter(mv, access, mname, mdesc));
-                if ((testClass || nonTestClass) && !mname.equals("<init>") && !mname.equals("<cinit>")) {
+                if (entryPoints != null && !mname.equals("<init>") && !mname.equals("<cinit>")
+                    && entryPoints.isEntryPoint(mname, mdesc))
+                {
                     mv = new EntryPointsAdder(testingCode, new GeneratorAdapter(mv, access, mname, mdesc));
                     mv = new TryCatchBlockSorter(mv, access, mname, mdesc, signature, exceptions);
                 }
                 return mv;
             }
         };
-        cv  = new CheckClassAdapter(cv); // TODO debug
-        cr.accept(cv, ClassReader.EXPAND_FRAMES);
+        if (verify)
+            cv = new CheckClassAdapter(cv);
+        cr.accept(cv, computeFrames ? ClassReader.EXPAND_FRAMES : 0);
         return cw.toByteArray();
     }
+
+    private static boolean isThread(String internalName, ClassLoader loader) {
+        if (internalName.equals("java/lang/Thread"))
+            return true;
+        if (internalName.startsWith("["))
+            return false;
+        try {
+            return Thread.class.isAssignableFrom(Class.forName(internalName.replace('/', '.'), false, loader));
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
 }
@@ -22,17 +22,34 @@ package com.devexperts.timetest.transformer;
  * #L%
  */
 
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.RecordComponentVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.Method;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 import static org.objectweb.asm.Type.*;
 
 class TransformationUtils {
-    static final int ASM_API = Opcodes.ASM5;
-    static final Type METHODS_TYPE = Type.getType("com/devexperts/timetest/Methods");
+    static final int ASM_API = Opcodes.ASM9;
+    static final Type METHODS_TYPE = Type.getObjectType("com/devexperts/timetest/Methods");
     static final Type OBJECT_TYPE = Type.getType(Object.class);
     static final Type THREAD_TYPE = Type.getType(Thread.class);
+    static final Type TIME_UNIT_TYPE = Type.getType(TimeUnit.class);
+    static final Type UNSAFE_TYPE = Type.getObjectType("sun/misc/Unsafe");
+    static final String VIRTUAL_THREAD = "java/lang/VirtualThread";
+    static final String VIRTUAL_THREADS = "jdk/internal/misc/VirtualThreads";
+
+    static final Handle TIME_CALL_SITE_BOOTSTRAP = new Handle(Opcodes.H_INVOKESTATIC,
+        "com/devexperts/timetest/TimeCallSite", "bootstrap",
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;", false);
 
     static final Method TIME_MILLIS = new Method("timeMillis", LONG_TYPE, new Type[]{});
     static final Method NANO_TIME = new Method("nanoTime", LONG_TYPE, new Type[]{});
@@ -43,6 +60,9 @@ class TransformationUtils {
     static final Method WAIT_ON_0 = new Method("waitOn", VOID_TYPE, new Type[]{OBJECT_TYPE});
     static final Method WAIT_ON_1 = new Method("waitOn", VOID_TYPE, new Type[]{OBJECT_TYPE, LONG_TYPE});
     static final Method WAIT_ON_2 = new Method("waitOn", VOID_TYPE, new Type[]{OBJECT_TYPE, LONG_TYPE, INT_TYPE});
+    static final Method WAIT_ON_SPURIOUSLY_0 = new Method("waitOnSpuriously", VOID_TYPE, new Type[]{OBJECT_TYPE});
+    static final Method WAIT_ON_SPURIOUSLY_1 = new Method("waitOnSpuriously", VOID_TYPE, new Type[]{OBJECT_TYPE, LONG_TYPE});
+    static final Method WAIT_ON_SPURIOUSLY_2 = new Method("waitOnSpuriously", VOID_TYPE, new Type[]{OBJECT_TYPE, LONG_TYPE, INT_TYPE});
 
     static final Method NOTIFY = new Method("notify", VOID_TYPE, new Type[]{OBJECT_TYPE});
     static final Method NOTIFY_ALL = new Method("notifyAll", VOID_TYPE, new Type[]{OBJECT_TYPE});
@@ -50,6 +70,11 @@ class TransformationUtils {
     static final Method PARK = new Method("park", VOID_TYPE, new Type[]{BOOLEAN_TYPE, LONG_TYPE});
     static final Method UNPARK = new Method("unpark", VOID_TYPE, new Type[]{OBJECT_TYPE});
 
+    static final Method PARK_VIRTUAL_0 = new Method("parkVirtual", BOOLEAN_TYPE, new Type[]{});
+    static final Method PARK_VIRTUAL_1 = new Method("parkVirtual", BOOLEAN_TYPE, new Type[]{LONG_TYPE});
+    static final Method PARK_VIRTUAL_UNTIL = new Method("parkVirtualUntil", BOOLEAN_TYPE, new Type[]{LONG_TYPE});
+    static final Method UNPARK_VIRTUAL = new Method("unparkVirtual", BOOLEAN_TYPE, new Type[]{THREAD_TYPE});
+
     static final Method IS_IN_TESTING_CODE_METHOD = new Method("isInTestingCode", BOOLEAN_TYPE, new Type[]{});
     static final Method ENTER_TESTING_CODE_METHOD = new Method("enterTestingCode", VOID_TYPE, new Type[]{BOOLEAN_TYPE});
     static final Method LEAVE_TESTING_CODE_METHOD = new Method("leaveTestingCode", VOID_TYPE, new Type[]{BOOLEAN_TYPE});
@@ -57,4 +82,88 @@ class TransformationUtils {
     static final Method LEAVE_NON_TESTING_CODE_METHOD = new Method("leaveNonTestingCode", VOID_TYPE, new Type[]{BOOLEAN_TYPE});
 
     static final Method START_THREAD_METHOD = new Method("startThread", VOID_TYPE, new Type[]{THREAD_TYPE});
-}
\ No newline at end of file
+    static final Method THREAD_START_FAILED_METHOD = new Method("threadStartFailed", VOID_TYPE, new Type[]{THREAD_TYPE});
+    static final Method START_THREAD_CALL_METHOD = new Method("startThreadCall", VOID_TYPE, new Type[]{THREAD_TYPE});
+    static final Method SUBMIT_TASK_METHOD = new Method("submitTask", VOID_TYPE, new Type[]{OBJECT_TYPE});
+    static final Method ENTER_TASK_METHOD = new Method("enterTask", BOOLEAN_TYPE, new Type[]{OBJECT_TYPE});
+    static final Method SELECT_TASK_METHOD = new Method("selectTask", VOID_TYPE, new Type[]{OBJECT_TYPE, BOOLEAN_TYPE});
+    static final Method TASK_DELAY_METHOD = new Method("taskDelay", LONG_TYPE, new Type[]{LONG_TYPE, BOOLEAN_TYPE, TIME_UNIT_TYPE});
+    static final Method NOTIFY_SHARED_METHOD = new Method("notifyShared", VOID_TYPE, new Type[]{OBJECT_TYPE});
+    static final Method NOTIFY_ALL_SHARED_METHOD = new Method("notifyAllShared", VOID_TYPE, new Type[]{OBJECT_TYPE});
+
+    // Names of the methods processed by ChangeTimeMethodsMethodTransformer
+    private static final Set<String> TIME_METHOD_NAMES = new HashSet<>(Arrays.asList(
+        "currentTimeMillis", "nanoTime", "sleep", "wait", "notify", "notifyAll", "park", "parkUntil", "unpark"));
+
+    private static final int CLASS_TAG = 7;
+    private static final int METHODREF_TAG = 10;
+    private static final int INTERFACE_METHODREF_TAG = 11;
+
+    /**
+     * Returns {@code true} if the constant pool of the class contains a reference to a method
+     * with the name of a time-based one. It does not parse the class, so it is much cheaper
+     * than the transformation and could be used to skip the classes which do not need to be changed.
+     */
+    static boolean referencesTimeMethods(ClassReader cr) {
+        char[] buf = new char[cr.getMaxStringLength()];
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            int offset = cr.getItem(i);
+            if (offset == 0) // the second slot of long and double constants
+                continue;
+            int tag = cr.readByte(offset - 1);
+            if (tag != METHODREF_TAG && tag != INTERFACE_METHODREF_TAG)
+                continue;
+            int nameAndTypeOffset = cr.getItem(cr.readUnsignedShort(offset + 2));
+            if (TIME_METHOD_NAMES.contains(cr.readUTF8(nameAndTypeOffset, buf)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if the constant pool of the class contains a reference to the specified class.
+     */
+    static boolean referencesClass(ClassReader cr, String internalName) {
+        char[] buf = new char[cr.getMaxStringLength()];
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            int offset = cr.getItem(i);
+            if (offset != 0 && cr.readByte(offset - 1) == CLASS_TAG && internalName.equals(cr.readUTF8(offset, buf)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if the class is {@link Thread} or its JDK subclass which is instrumented
+     * to trace the thread starts.
+     */
+    static boolean isThreadClass(String className) {
+        return className.equals("java/lang/Thread") || className.equals(VIRTUAL_THREAD);
+    }
+
+    /**
+     * Hides the class attributes introduced after Java 8 from the specified visitor.
+     * It is required for the visitors created with older ASM API versions (e.g. {@code ClassInfoVisitor}),
+     * they throw {@link UnsupportedOperationException} on such attributes.
+     */
+    static ClassVisitor skipNewAttributes(ClassVisitor cv) {
+        return new ClassVisitor(ASM_API, cv) {
+            @Override
+            public void visitNestHost(String nestHost) {
+            }
+
+            @Override
+            public void visitNestMember(String nestMember) {
+            }
+
+            @Override
+            public void visitPermittedSubclass(String permittedSubclass) {
+            }
+
+            @Override
+            public RecordComponentVisitor visitRecordComponent(String name, String descriptor, String signature) {
+                return null;
+            }
+        };
+    }
+}
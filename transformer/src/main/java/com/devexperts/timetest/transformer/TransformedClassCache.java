@@ -0,0 +1,271 @@
+package com.devexperts.timetest.transformer;
+
+/*
+ * #%L
+ * transformer
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.jagent.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of transformed classes which can be shared by several JVMs.
+ * <p>
+ * Classes are stored in an append-only pack file, every configuration has its own one.
+ * A record consists of the key (SHA-1 of the original class bytes), the length and CRC32
+ * of the record and the transformed class bytes, an empty class means that the class is not changed.
+ * <p>
+ * The index is kept in memory, it is built by scanning the pack file which is memory-mapped on start.
+ * Records are appended under an exclusive file lock. Before appending, a writer reads the records
+ * appended by other JVMs and truncates an incomplete record left by a crashed one.
+ * Corrupted records stop the scanning, so they are never returned.
+ * <p>
+ * The size of the pack is limited, since records of the changed classes are never removed.
+ * Records are not appended after the limit is reached, and the next JVM which opens the full pack
+ * starts a new one. The full pack is deleted instead of being truncated, since other JVMs could have it mapped.
+ */
+class TransformedClassCache {
+    private static final int KEY_LENGTH = 20; // SHA-1
+    private static final int HEADER_LENGTH = KEY_LENGTH + 8; // key, length and CRC32
+    private static final long MAX_SIZE = 256 << 20;
+
+    static final byte[] UNCHANGED = new byte[0];
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Log log;
+    private final FileChannel channel;
+    private final long maxSize;
+    private final MappedByteBuffer mapped; // the pack content on start
+    private final ConcurrentHashMap<ByteBuffer, Long> index = new ConcurrentHashMap<>(); // key -> record offset
+    private long end; // end of the scanned records, guarded by this
+    private volatile boolean disabled;
+
+    private TransformedClassCache(Log log, FileChannel channel, long maxSize) throws IOException {
+        this.log = log;
+        this.channel = channel;
+        this.maxSize = maxSize;
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Cache file is too large: " + size);
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        end = scan(mapped, 0);
+    }
+
+    /**
+     * Opens the cache for the specified configuration in the specified directory.
+     *
+     * @param fingerprint agent version and effective configuration which affect the transformation.
+     * @return the cache or {@code null} if it cannot be opened.
+     */
+    static TransformedClassCache open(String dir, String fingerprint, Log log) {
+        return open(dir, fingerprint, MAX_SIZE, log);
+    }
+
+    // The size limit is specified by tests
+    static TransformedClassCache open(String dir, String fingerprint, long maxSize, Log log) {
+        File file = new File(dir, "timetest-" + toHex(digest(fingerprint.getBytes(StandardCharsets.UTF_8))) + ".pack");
+        try {
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Cannot create directory " + parent);
+            FileChannel channel = openChannel(file);
+            if (channel.size() >= maxSize)
+                channel = startNewPack(file, channel, log);
+            try {
+                TransformedClassCache cache = new TransformedClassCache(log, channel, maxSize);
+                log.info("Transformed classes cache is opened: ", file, ", classes: ", cache.index.size());
+                return cache;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot open transformed classes cache ", file, ", caching is disabled: ", e);
+            return null;
+        }
+    }
+
+    private static FileChannel openChannel(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Deletes the specified full pack and opens a new one, the full pack is used as is if it cannot be deleted
+     * (e.g. it is opened by another process on Windows).
+     */
+    private static FileChannel startNewPack(File file, FileChannel channel, Log log) throws IOException {
+        try {
+            try (FileLock ignored = channel.lock()) {
+                Files.deleteIfExists(file.toPath());
+            }
+        } catch (IOException e) {
+            log.warn("Cannot delete full transformed classes cache ", file, ", new classes are not cached: ", e);
+            return channel;
+        }
+        channel.close();
+        log.info("Transformed classes cache is full, it is started anew: ", file);
+        return openChannel(file);
+    }
+
+    /**
+     * Returns key for the specified original class bytes.
+     *
+     * @param bootstrap {@code true} if the class is loaded by the bootstrap class loader,
+     *                  such classes are transformed differently.
+     */
+    static byte[] key(byte[] classfileBuffer, boolean bootstrap) {
+        MessageDigest md = SHA1.get();
+        md.update((byte) (bootstrap ? 1 : 0));
+        return md.digest(classfileBuffer);
+    }
+
+    /**
+     * Returns the transformed class for the specified key, {@link #UNCHANGED} if the class is not changed
+     * by the transformation, or {@code null} if the class is not cached.
+     */
+    byte[] get(byte[] key) {
+        if (disabled)
+            return null;
+        Long offset = index.get(ByteBuffer.wrap(key));
+        if (offset == null)
+            return null;
+        try {
+            ByteBuffer header = read(offset, HEADER_LENGTH);
+            int length = header.getInt(KEY_LENGTH);
+            if (length == 0)
+                return UNCHANGED;
+            return read(offset + HEADER_LENGTH, length).array();
+        } catch (IOException e) {
+            disable(e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the transformed class for the specified key, {@link #UNCHANGED} if the class is not changed.
+     */
+    synchronized void put(byte[] key, byte[] bytes) {
+        if (disabled)
+            return;
+        try (FileLock ignored = channel.lock()) {
+            // Read records appended by other JVMs
+            long size = channel.size();
+            if (size > end) {
+                long scanned = scan(channel.map(FileChannel.MapMode.READ_ONLY, end, size - end), end);
+                // The rest is an incomplete record, all writers append under the lock
+                if (scanned < size)
+                    channel.truncate(scanned);
+                end = scanned;
+            }
+            if (index.containsKey(ByteBuffer.wrap(key)) || end >= maxSize)
+                return;
+            ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + bytes.length);
+            record.put(key).putInt(bytes.length).putInt(crc(key, bytes, 0, bytes.length)).put(bytes);
+            record.flip();
+            long offset = end;
+            while (record.hasRemaining())
+                channel.write(record, offset + record.position());
+            end = offset + record.capacity();
+            index.put(ByteBuffer.wrap(key), offset);
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    /**
+     * Adds valid records from the specified buffer which starts at the specified offset to the index.
+     *
+     * @return offset after the last valid record.
+     */
+    private long scan(ByteBuffer buf, long base) {
+        int pos = 0;
+        while (buf.limit() - pos >= HEADER_LENGTH) {
+            int length = buf.getInt(pos + KEY_LENGTH);
+            if (length < 0 || length > buf.limit() - pos - HEADER_LENGTH)
+                break;
+            byte[] key = new byte[KEY_LENGTH];
+            byte[] bytes = new byte[length];
+            ((ByteBuffer) buf.duplicate().position(pos)).get(key);
+            ((ByteBuffer) buf.duplicate().position(pos + HEADER_LENGTH)).get(bytes);
+            if (buf.getInt(pos + KEY_LENGTH + 4) != crc(key, bytes, 0, length))
+                break;
+            index.putIfAbsent(ByteBuffer.wrap(key), base + pos);
+            pos += HEADER_LENGTH + length;
+        }
+        return base + pos;
+    }
+
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(length);
+        if (offset + length <= mapped.limit()) {
+            ((ByteBuffer) mapped.duplicate().position((int) offset)).get(result.array());
+            return result;
+        }
+        while (result.hasRemaining()) {
+            if (channel.read(result, offset + result.position()) < 0)
+                throw new IOException("Unexpected end of cache file");
+        }
+        return result;
+    }
+
+    private void disable(IOException e) {
+        disabled = true;
+        log.warn("Transformed classes cache failed, caching is disabled: ", e);
+    }
+
+    private static int crc(byte[] key, byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] digest(byte[] bytes) {
+        MessageDigest md = SHA1.get();
+        return md.digest(bytes);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,136 @@
+package com.devexperts.timetest.transformer;
+
+/*
+ * #%L
+ * transformer
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class GlobMatcherTest {
+    private static final String ALPHABET = "ab.$\u00e9\u4e2d";
+
+    @Test
+    public void testStar() {
+        check(new String[] {"*"}, "", "a", "com.example.Foo");
+        check(new String[] {"a*"}, "", "a", "ab", "ba");
+        check(new String[] {"*a"}, "", "a", "ab", "ba");
+        check(new String[] {"a*b*a"}, "aba", "aa", "abba", "abab", "ababa");
+        check(new String[] {"**"}, "", "ab");
+    }
+
+    @Test
+    public void testEmptyGlobs() {
+        check(new String[] {""}, "", "a");
+        check(new String[] {}, "", "a");
+        check(new String[] {"a,"}, "", "a", "aa");
+        check(new String[] {",,"}, "", "a");
+    }
+
+    @Test
+    public void testAlternatives() {
+        check(new String[] {"a,b*"}, "a", "b", "bc", "ab", "");
+        check(new String[] {"java.*,javax.*", "sun.*"}, "java.util.List", "javax.Foo", "sun.misc.Unsafe", "jdk.Foo");
+    }
+
+    @Test
+    public void testOverlappingGroups() {
+        check(new String[][] {{"com.*"}, {"com.example.*"}, {"*Test"}},
+            "com.example.FooTest", "com.Foo", "org.FooTest", "com.example", "com.example.");
+        check(new String[][] {{"a*"}, {"a*"}, {"*"}}, "", "a", "b");
+    }
+
+    @Test
+    public void testNonAsciiCharacters() {
+        check(new String[][] {{"\u00e9*"}, {"*\u4e2d"}, {"a\u4e2d*b"}},
+            "\u00e9", "\u00e9\u4e2d", "a\u4e2d\u00e9b", "\u4e2d", "\u00e8");
+    }
+
+    @Test
+    public void testRandomGlobs() {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++)
+            checkRandom(random, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testStatesLimit() {
+        Random random = new Random(2);
+        // Transitions to the states over the limit are computed on every match
+        for (int maxStates = 0; maxStates < 5; maxStates++) {
+            for (int i = 0; i < 50; i++)
+                checkRandom(random, maxStates);
+        }
+    }
+
+    private static void checkRandom(Random random, int maxStates) {
+        String[][] groups = new String[1 + random.nextInt(3)][];
+        for (int g = 0; g < groups.length; g++) {
+            groups[g] = new String[random.nextInt(3)];
+            for (int i = 0; i < groups[g].length; i++)
+                groups[g][i] = randomString(random, "*,*" + ALPHABET);
+        }
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            strings.add(randomString(random, ALPHABET));
+        check(new GlobMatcher(maxStates, groups), groups, strings.toArray(new String[0]));
+    }
+
+    private static String randomString(Random random, String alphabet) {
+        StringBuilder sb = new StringBuilder();
+        for (int n = random.nextInt(8); n > 0; n--)
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+    private static void check(String[] group, String... strings) {
+        check(new String[][] {group}, strings);
+    }
+
+    private static void check(String[][] groups, String... strings) {
+        check(new GlobMatcher(groups), groups, strings);
+        check(new GlobMatcher(1, groups), groups, strings);
+    }
+
+    private static void check(GlobMatcher matcher, String[][] groups, String... strings) {
+        // Every string is matched twice to use the cached transitions too
+        for (int k = 0; k < 2; k++) {
+            for (String s : strings)
+                assertEquals("Groups of \"" + s + "\"", expectedGroups(groups, s), matcher.match(s));
+        }
+    }
+
+    private static int expectedGroups(String[][] groups, String s) {
+        int result = 0;
+        for (int g = 0; g < groups.length; g++) {
+            for (String glob : groups[g]) {
+                if (GlobUtil.compile(glob).matcher(s).matches())
+                    result |= 1 << g;
+            }
+        }
+        return result;
+    }
+}
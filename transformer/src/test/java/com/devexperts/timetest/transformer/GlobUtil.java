@@ -38,6 +38,7 @@ import java.util.regex.Pattern;
  * <li>Use '*' for any sequence of characters (regex equivalent is '.*')
  * <li>Use ',' for a list of choices (regex equivalent is '|')
  * </ul>
+ * It is the reference implementation for {@link GlobMatcher} tests.
  */
 public class GlobUtil {
     private GlobUtil() {
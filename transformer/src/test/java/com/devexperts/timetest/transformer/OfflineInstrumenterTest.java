@@ -0,0 +1,140 @@
+package com.devexperts.timetest.transformer;
+
+/*
+ * #%L
+ * transformer
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.jagent.Log;
+import org.aeonbits.owner.ConfigFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static com.devexperts.timetest.transformer.TransformationUtils.ASM_API;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineInstrumenterTest {
+    private static final String CLASS_NAME = "sample/Clock";
+    private static final Log LOG = new Log("timetest", Log.Level.WARN, null);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testInstrumentDirectory() throws IOException {
+        File source = folder.newFolder("classes");
+        File target = new File(folder.getRoot(), "instrumented");
+        File classFile = new File(source, CLASS_NAME + ".class");
+        File resource = new File(source, "sample/clock.properties");
+        assertTrue(classFile.getParentFile().mkdirs());
+        Files.write(classFile.toPath(), clockClass());
+        Files.write(resource.toPath(), "clock=system".getBytes(StandardCharsets.UTF_8));
+
+        OfflineInstrumenter instrumenter = instrumenter("1.0");
+        assertEquals(2, instrumenter.instrumentDirectory(source, target, getClass().getClassLoader()));
+        List<String> calls = invocations(Files.readAllBytes(new File(target, CLASS_NAME + ".class").toPath()));
+        assertFalse(calls.toString(), calls.contains("java/lang/System.currentTimeMillis"));
+        assertTrue(calls.toString(), calls.contains("invokedynamic timeMillis"));
+        assertFalse(calls.toString(), calls.contains("java/lang/Thread.start"));
+        assertTrue(calls.toString(), calls.contains("com/devexperts/timetest/Methods.startThreadCall"));
+        assertArrayEquals(Files.readAllBytes(resource.toPath()),
+            Files.readAllBytes(new File(target, "sample/clock.properties").toPath()));
+
+        // Files are not processed again while they are up to date
+        assertEquals(0, instrumenter.instrumentDirectory(source, target, getClass().getClassLoader()));
+        assertTrue(resource.setLastModified(resource.lastModified() + 10_000));
+        assertEquals(1, instrumenter.instrumentDirectory(source, target, getClass().getClassLoader()));
+        // All files are processed again by another version
+        assertEquals(2, instrumenter("1.1").instrumentDirectory(source, target, getClass().getClassLoader()));
+
+        // Removed files are removed from the target
+        assertTrue(resource.delete());
+        assertEquals(0, instrumenter("1.1").instrumentDirectory(source, target, getClass().getClassLoader()));
+        assertFalse(new File(target, "sample/clock.properties").exists());
+    }
+
+    private static OfflineInstrumenter instrumenter(String version) {
+        return new OfflineInstrumenter(ConfigFactory.create(Configuration.class, new Properties()), LOG, version);
+    }
+
+    /**
+     * Returns the class with {@code long time()} method which returns {@link System#currentTimeMillis()}
+     * and {@code void start(Thread)} method which starts the specified thread.
+     */
+    private static byte[] clockClass() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, CLASS_NAME, null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "time", "()J", null, null);
+        mv.visitCode();
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "currentTimeMillis", "()J", false);
+        mv.visitInsn(Opcodes.LRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "start", "(Ljava/lang/Thread;)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Thread", "start", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    // Time methods are invoked via invokedynamic in the instrumented classes
+    private static List<String> invocations(byte[] bytes) {
+        List<String> result = new ArrayList<>();
+        new ClassReader(bytes).accept(new ClassVisitor(ASM_API) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                return new MethodVisitor(ASM_API) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                        result.add(owner + "." + name);
+                    }
+
+                    @Override
+                    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+                        result.add("invokedynamic " + name);
+                    }
+                };
+            }
+        }, 0);
+        return result;
+    }
+}
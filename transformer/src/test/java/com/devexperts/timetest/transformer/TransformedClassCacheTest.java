@@ -0,0 +1,172 @@
+package com.devexperts.timetest.transformer;
+
+/*
+ * #%L
+ * transformer
+ * %%
+ * Copyright (C) 2015 - 2018 Devexperts, LLC
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+import com.devexperts.jagent.Log;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TransformedClassCacheTest {
+    private static final String FINGERPRINT = "test";
+    private static final int HEADER_LENGTH = 28; // key, length and CRC32
+    private static final Log LOG = new Log("timetest", Log.Level.WARN, null);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHitAfterReopen() {
+        TransformedClassCache cache = open();
+        cache.put(key("A"), bytes("transformed A"));
+        cache.put(key("B"), TransformedClassCache.UNCHANGED);
+        assertArrayEquals(bytes("transformed A"), cache.get(key("A")));
+        assertSame(TransformedClassCache.UNCHANGED, cache.get(key("B")));
+        assertNull(cache.get(key("C")));
+        TransformedClassCache reopened = open();
+        assertArrayEquals(bytes("transformed A"), reopened.get(key("A")));
+        assertSame(TransformedClassCache.UNCHANGED, reopened.get(key("B")));
+        assertNull(reopened.get(key("C")));
+    }
+
+    @Test
+    public void testAppendByAnotherInstance() {
+        TransformedClassCache first = open();
+        TransformedClassCache second = open();
+        first.put(key("A"), bytes("transformed A"));
+        // Records of another instance are read before appending
+        second.put(key("B"), bytes("transformed B"));
+        assertArrayEquals(bytes("transformed A"), second.get(key("A")));
+        first.put(key("C"), TransformedClassCache.UNCHANGED);
+        assertArrayEquals(bytes("transformed B"), first.get(key("B")));
+        long size = packFile().length();
+        // The class is already stored by another instance
+        second.put(key("C"), TransformedClassCache.UNCHANGED);
+        assertEquals(size, packFile().length());
+        assertSame(TransformedClassCache.UNCHANGED, second.get(key("C")));
+    }
+
+    @Test
+    public void testCorruptedTail() throws IOException {
+        TransformedClassCache cache = open();
+        cache.put(key("A"), bytes("transformed A"));
+        long size = packFile().length();
+        cache.put(key("B"), bytes("transformed B"));
+        // Flip the last byte of the second record, so its CRC does not match
+        try (RandomAccessFile file = new RandomAccessFile(packFile(), "rw")) {
+            file.seek(file.length() - 1);
+            int b = file.read();
+            file.seek(file.length() - 1);
+            file.write(b ^ 1);
+        }
+        TransformedClassCache reopened = open();
+        assertArrayEquals(bytes("transformed A"), reopened.get(key("A")));
+        assertNull(reopened.get(key("B")));
+        // The corrupted record is truncated before appending
+        reopened.put(key("C"), bytes("transformed C"));
+        TransformedClassCache third = open();
+        assertArrayEquals(bytes("transformed A"), third.get(key("A")));
+        assertNull(third.get(key("B")));
+        assertArrayEquals(bytes("transformed C"), third.get(key("C")));
+        assertEquals(size + HEADER_LENGTH + bytes("transformed C").length, packFile().length());
+    }
+
+    @Test
+    public void testIncompleteTail() throws IOException {
+        TransformedClassCache cache = open();
+        cache.put(key("A"), bytes("transformed A"));
+        long size = packFile().length();
+        // Record of a crashed JVM
+        try (RandomAccessFile file = new RandomAccessFile(packFile(), "rw")) {
+            file.seek(size);
+            file.write(key("B"));
+            file.writeInt(1000);
+        }
+        TransformedClassCache reopened = open();
+        assertNull(reopened.get(key("B")));
+        reopened.put(key("C"), TransformedClassCache.UNCHANGED);
+        TransformedClassCache third = open();
+        assertArrayEquals(bytes("transformed A"), third.get(key("A")));
+        assertSame(TransformedClassCache.UNCHANGED, third.get(key("C")));
+        assertEquals(size + HEADER_LENGTH, packFile().length());
+    }
+
+    @Test
+    public void testSizeLimit() {
+        int maxSize = 100;
+        TransformedClassCache cache = open(maxSize);
+        int n = 0;
+        while (packFile().length() < maxSize)
+            cache.put(key("A" + n++), bytes("transformed"));
+        long size = packFile().length();
+        // Records are not appended to the full pack
+        cache.put(key("B"), bytes("transformed B"));
+        assertNull(cache.get(key("B")));
+        assertEquals(size, packFile().length());
+        // The next instance starts a new pack
+        TransformedClassCache reopened = open(maxSize);
+        assertNull(reopened.get(key("A0")));
+        assertEquals(0, packFile().length());
+        reopened.put(key("B"), bytes("transformed B"));
+        assertArrayEquals(bytes("transformed B"), reopened.get(key("B")));
+        assertArrayEquals(bytes("transformed B"), open(maxSize).get(key("B")));
+    }
+
+    private TransformedClassCache open() {
+        return open(Long.MAX_VALUE);
+    }
+
+    private TransformedClassCache open(long maxSize) {
+        TransformedClassCache cache = TransformedClassCache.open(folder.getRoot().getPath(), FINGERPRINT, maxSize, LOG);
+        assertNotNull(cache);
+        return cache;
+    }
+
+    private File packFile() {
+        File[] files = folder.getRoot().listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".pack"));
+        return files[0];
+    }
+
+    private static byte[] key(String className) {
+        return TransformedClassCache.key(bytes(className), false);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}